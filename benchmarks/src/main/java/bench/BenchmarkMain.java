@@ -0,0 +1,50 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *  Entry point of {@code benchmarks.jar}. Prints the compression ratio of
+ *  every shape from {@link Bitmaps} at every code width the benchmarks use,
+ *  then runs the JMH suite with the GC profiler, so each result comes with
+ *  its allocation rate. Any JMH command-line options are passed through,
+ *  for example {@code java -jar benchmarks.jar CompressBenchmark -p size=65536}.
+ *
+ *  @author Kieran Pichai
+ */
+public final class BenchmarkMain {
+    private static final String[] SHAPES = { "white", "noise", "text", "longruns" };
+    private static final int[] WIDTHS = { 3, 8, 16, 32 };
+    private static final int SIZE = 1 << 22;
+
+    // don't instantiate
+    private BenchmarkMain() { }
+
+    /**
+     * Prints the ratio table and runs the benchmarks.
+     * @param args JMH command-line options
+     * @throws Throwable if the compressor or JMH fails
+     */
+    public static void main(String[] args) throws Throwable {
+        System.out.printf("Compressed size / original size, %d-byte bitmaps%n", SIZE);
+        System.out.printf("%-10s", "shape");
+        for (int width : WIDTHS) System.out.printf("%10s", "width " + width);
+        System.out.println();
+        for (String shape : SHAPES) {
+            byte[] bitmap = Bitmaps.generate(shape, SIZE);
+            System.out.printf("%-10s", shape);
+            for (int width : WIDTHS) {
+                System.out.printf("%10.4f", (double) Library.compress(bitmap, width).length / bitmap.length);
+            }
+            System.out.println();
+        }
+        System.out.println();
+
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,91 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Throughput of reading and writing <em>r</em>-bit fields, the inner loop
+ *  of every codec. {@code BinaryStdIn.readInt(r)} and
+ *  {@code BinaryStdOut.write(int, r)} are thin wrappers over the
+ *  {@code BinaryIn} and {@code BinaryOut} methods measured here, which run
+ *  over memory instead of standard input and output so the numbers don't
+ *  depend on a pipe. Each operation moves one megabyte of fields, so the
+ *  score is in MB/s.
+ *
+ *  @author Kieran Pichai
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryIoBenchmark {
+    private static final int BYTES = 1 << 20;
+
+    @Param({ "1", "3", "8", "13", "32" })
+    public int r;
+
+    private byte[] data;
+    private int[] values;       // r-bit values to write, as many as fit in BYTES
+    private int mask;
+
+    /**
+     * Generates the random bytes to read and the fields to write.
+     */
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(r);
+        data = new byte[BYTES];
+        random.nextBytes(data);
+        values = new int[(int) (8L * BYTES / r)];
+        mask = r == 32 ? -1 : (1 << r) - 1;
+        for (int i = 0; i < values.length; i++) {
+            // write(int, r) takes a non-negative value below 2^r
+            values[i] = random.nextInt() & mask & Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reads one megabyte as r-bit fields.
+     * @return a checksum of the fields, so none of the reads are dead code
+     * @throws Throwable if a read throws
+     */
+    @Benchmark
+    public int readInt() throws Throwable {
+        Object in = (Object) Library.NEW_IN.invokeExact((InputStream) new ByteArrayInputStream(data));
+        int sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            sum += (int) Library.READ_INT.invokeExact(in, r);
+        }
+        return sum;
+    }
+
+    /**
+     * Writes one megabyte of r-bit fields to a stream that discards them.
+     * @throws Throwable if a write throws
+     */
+    @Benchmark
+    public void writeInt() throws Throwable {
+        Object out = (Object) Library.NEW_OUT.invokeExact(OutputStream.nullOutputStream());
+        for (int value : values) {
+            Library.WRITE_INT.invokeExact(out, value, r);
+        }
+        Library.FLUSH.invokeExact(out);
+    }
+}
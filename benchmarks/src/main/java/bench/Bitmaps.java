@@ -0,0 +1,119 @@
+package bench;
+
+import java.util.SplittableRandom;
+
+/**
+ *  Synthetic bitmaps of any size for the benchmarks, each with a fixed seed
+ *  so every run sees the same bits.
+ *  <ul>
+ *  <li>{@code white}: all 0s, one run, the best case;
+ *  <li>{@code noise}: random bits, runs averaging 2 bits, the worst case;
+ *  <li>{@code text}: a 1728-pixel-wide page of lines of glyph-sized black
+ *      strokes between white margins and line gaps, like a fax scan;
+ *  <li>{@code longruns}: runs of 300 to 100000 bits, longer than the
+ *      {@code maxLength} of narrow codes, so the {@code maxLength, 0}
+ *      escape is written over and over.
+ *  </ul>
+ *
+ *  @author Kieran Pichai
+ */
+final class Bitmaps {
+    private static final int PAGE_WIDTH = 1728;         // pixels per row of a fax page
+    private static final int LINE_PITCH = 40;           // rows from one line of text to the next
+    private static final int LINE_HEIGHT = 16;          // rows of a line of text that have ink
+    private static final int MARGIN = 100;              // white pixels at each side of the page
+
+    // don't instantiate
+    private Bitmaps() { }
+
+    /**
+     * Returns a bitmap of the given shape.
+     * @param shape "white", "noise", "text" or "longruns"
+     * @param size the size of the bitmap in bytes
+     * @return the bitmap
+     * @throws IllegalArgumentException if the shape is unknown
+     */
+    static byte[] generate(String shape, int size) {
+        byte[] bitmap = new byte[size];
+        SplittableRandom random = new SplittableRandom(size);
+        switch (shape) {
+            case "white":
+                break;
+            case "noise":
+                random.nextBytes(bitmap);
+                break;
+            case "text":
+                text(bitmap, random);
+                break;
+            case "longruns":
+                longRuns(bitmap, random);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        return bitmap;
+    }
+
+    // Rows of text: within a line, words of short strokes; between lines, white rows
+    private static void text(byte[] bitmap, SplittableRandom random) {
+        long bits = 8L * bitmap.length;
+        // Word layout is kept for a whole line of text, so strokes line up from row to row like glyphs do
+        int[] strokes = new int[PAGE_WIDTH];
+        int numStrokes = 0;
+        for (long row = 0; row * PAGE_WIDTH < bits; row++) {
+            int inLine = (int) (row % LINE_PITCH);
+            if (inLine == 0) numStrokes = layoutLine(strokes, random);
+            if (inLine >= LINE_HEIGHT) continue;
+            long start = row * PAGE_WIDTH;
+            for (int i = 0; i < numStrokes; i += 2) {
+                // Glyphs change a little from row to row
+                int from = strokes[i] + random.nextInt(3) - 1;
+                int to = strokes[i + 1] + random.nextInt(3) - 1;
+                if (to > from) setRun(bitmap, start + from, to - from);
+            }
+        }
+    }
+
+    // Picks the strokes of one line of text as (start, end) pairs, returning how many numbers it filled in
+    private static int layoutLine(int[] strokes, SplittableRandom random) {
+        int n = 0;
+        int x = MARGIN;
+        while (true) {
+            // A word is a few glyphs of one to three thin strokes each
+            int glyphs = 2 + random.nextInt(8);
+            for (int g = 0; g < glyphs; g++) {
+                int numStrokes = 1 + random.nextInt(3);
+                for (int k = 0; k < numStrokes; k++) {
+                    int from = x + 2 + random.nextInt(4);
+                    int to = from + 1 + random.nextInt(3);
+                    if (to > PAGE_WIDTH - MARGIN || n + 2 > strokes.length) return n;
+                    strokes[n++] = from;
+                    strokes[n++] = to;
+                    x = to;
+                }
+                x += 4 + random.nextInt(4);
+            }
+            x += 12 + random.nextInt(20);
+        }
+    }
+
+    // Alternating runs that are all too long for narrow codes
+    private static void longRuns(byte[] bitmap, SplittableRandom random) {
+        long bits = 8L * bitmap.length;
+        boolean black = false;
+        for (long at = 0; at < bits; ) {
+            long length = Math.min(300 + random.nextInt(100000), bits - at);
+            if (black) setRun(bitmap, at, length);
+            at += length;
+            black = !black;
+        }
+    }
+
+    // Sets bits [from, from + length), most significant bit of each byte first
+    private static void setRun(byte[] bitmap, long from, long length) {
+        long end = Math.min(from + length, 8L * bitmap.length);
+        for (long bit = from; bit < end; bit++) {
+            bitmap[(int) (bit >>> 3)] |= (byte) (0x80 >>> (bit & 7));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Throughput of {@code BitmapCompressor.compress} and {@code expand} over
+ *  every shape from {@link Bitmaps}, at several sizes and code widths.
+ *  <p>
+ *  Besides operations per second, each benchmark reports {@code megabytes}
+ *  per second of bitmap (the uncompressed side in both directions) and
+ *  {@code compressedMegabytes} per second; their ratio is the compression
+ *  ratio for that shape and width. Run with {@code -prof gc}, as
+ *  {@link BenchmarkMain} does, for the allocation rate.
+ *
+ *  @author Kieran Pichai
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressBenchmark {
+    @Param({ "white", "noise", "text", "longruns" })
+    public String shape;
+
+    @Param({ "65536", "4194304" })
+    public int size;
+
+    @Param({ "3", "8", "16", "32" })
+    public int width;
+
+    private byte[] bitmap;
+    private byte[] compressed;
+
+    /**
+     * Counts the bytes each benchmark goes through, reported by JMH as rates.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        /** Megabytes of bitmap compressed or expanded. */
+        public double megabytes;
+        /** Megabytes of compressed stream written or read. */
+        public double compressedMegabytes;
+
+        /** Clears the counters before each iteration. */
+        @Setup(Level.Iteration)
+        public void clear() {
+            megabytes = 0;
+            compressedMegabytes = 0;
+        }
+    }
+
+    /**
+     * Generates the bitmap and compresses it once for the expand benchmark.
+     * @throws Throwable if the compressor throws
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        bitmap = Bitmaps.generate(shape, size);
+        compressed = Library.compress(bitmap, width);
+    }
+
+    /**
+     * Compresses the bitmap.
+     * @param bytes the byte counters
+     * @return the compressed bitmap
+     * @throws Throwable if the compressor throws
+     */
+    @Benchmark
+    public byte[] compress(Bytes bytes) throws Throwable {
+        byte[] result = Library.compress(bitmap, width);
+        bytes.megabytes += bitmap.length / 1e6;
+        bytes.compressedMegabytes += result.length / 1e6;
+        return result;
+    }
+
+    /**
+     * Expands the compressed bitmap.
+     * @param bytes the byte counters
+     * @return the bitmap
+     * @throws Throwable if the compressor throws
+     */
+    @Benchmark
+    public byte[] expand(Bytes bytes) throws Throwable {
+        byte[] result = Library.expand(compressed, bitmap.length);
+        bytes.megabytes += result.length / 1e6;
+        bytes.compressedMegabytes += compressed.length / 1e6;
+        return result;
+    }
+}
@@ -0,0 +1,96 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ *  Method handles for the compressor's classes, which live in the default
+ *  package and so can't be named from {@code bench}. JMH refuses benchmarks
+ *  in the default package, so this is the one place the two meet.
+ *  <p>
+ *  Every handle is a {@code static final} adapted to {@code Object} in place
+ *  of {@code BinaryIn} and {@code BinaryOut}, so the JIT treats it as a
+ *  constant and inlines the call through {@code invokeExact} like a direct one.
+ *
+ *  @author Kieran Pichai
+ */
+final class Library {
+    /** {@code new BinaryIn(InputStream)}, as {@code (InputStream)Object}. */
+    static final MethodHandle NEW_IN;
+    /** {@code new BinaryOut(OutputStream)}, as {@code (OutputStream)Object}. */
+    static final MethodHandle NEW_OUT;
+    /** {@code BitmapCompressor.compress(BinaryIn, BinaryOut, int)}, as {@code (Object, Object, int)void}. */
+    static final MethodHandle COMPRESS;
+    /** {@code BitmapCompressor.expand(BinaryIn, BinaryOut)}, as {@code (Object, Object)void}. */
+    static final MethodHandle EXPAND;
+    /** {@code BinaryIn.readInt(int)}, as {@code (Object, int)int}. */
+    static final MethodHandle READ_INT;
+    /** {@code BinaryOut.write(int, int)}, as {@code (Object, int, int)void}. */
+    static final MethodHandle WRITE_INT;
+    /** {@code BinaryOut.flush()}, as {@code (Object)void}. */
+    static final MethodHandle FLUSH;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> in = Class.forName("BinaryIn");
+            Class<?> out = Class.forName("BinaryOut");
+            Class<?> compressor = Class.forName("BitmapCompressor");
+            NEW_IN = lookup.findConstructor(in, MethodType.methodType(void.class, InputStream.class))
+                    .asType(MethodType.methodType(Object.class, InputStream.class));
+            NEW_OUT = lookup.findConstructor(out, MethodType.methodType(void.class, OutputStream.class))
+                    .asType(MethodType.methodType(Object.class, OutputStream.class));
+            COMPRESS = lookup.findStatic(compressor, "compress", MethodType.methodType(void.class, in, out, int.class))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class, int.class));
+            EXPAND = lookup.findStatic(compressor, "expand", MethodType.methodType(void.class, in, out))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            READ_INT = lookup.findVirtual(in, "readInt", MethodType.methodType(int.class, int.class))
+                    .asType(MethodType.methodType(int.class, Object.class, int.class));
+            WRITE_INT = lookup.findVirtual(out, "write", MethodType.methodType(void.class, int.class, int.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class, int.class));
+            FLUSH = lookup.findVirtual(out, "flush", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // don't instantiate
+    private Library() { }
+
+    /**
+     * Compresses a bitmap held in memory with codes of the given width.
+     * @param bitmap the bitmap
+     * @param width the code width
+     * @return the compressed bitmap
+     * @throws Throwable if the compressor throws
+     */
+    static byte[] compress(byte[] bitmap, int width) throws Throwable {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(bitmap.length / 4 + 64);
+        Object in = (Object) NEW_IN.invokeExact((InputStream) new ByteArrayInputStream(bitmap));
+        Object out = (Object) NEW_OUT.invokeExact((OutputStream) bytes);
+        COMPRESS.invokeExact(in, out, width);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Expands a compressed bitmap held in memory.
+     * @param compressed the compressed bitmap
+     * @param size the expected size of the bitmap in bytes
+     * @return the bitmap
+     * @throws Throwable if the compressor throws
+     */
+    static byte[] expand(byte[] compressed, int size) throws Throwable {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+        Object in = (Object) NEW_IN.invokeExact((InputStream) new ByteArrayInputStream(compressed));
+        Object out = (Object) NEW_OUT.invokeExact((OutputStream) bytes);
+        EXPAND.invokeExact(in, out);
+        return bytes.toByteArray();
+    }
+}
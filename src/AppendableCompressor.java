@@ -0,0 +1,288 @@
+/******************************************************************************
+ *  Compilation:  javac AppendableCompressor.java
+ *  Execution:    java AppendableCompressor - 8 < strip0.bin > scan.bin   (start a stream)
+ *  Execution:    java AppendableCompressor append scan.bin < strip1.bin  (add a strip in place)
+ *  Execution:    java BitmapCompressor + < scan.bin                      (expand)
+ *  Dependencies: BinaryIn.java BinaryOut.java RunScanner.java RunList.java
+ *                RunCodec.java BitmapCompressor.java
+ *
+ *  Compressed streams that a bitmap arriving in strips can be added to in
+ *  place, at a cost proportional to the new strip rather than the file.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  The {@code AppendableCompressor} class provides static methods for the
+ *  appendable variant of the {@link BitmapCompressor} format.
+ *  <p>
+ *  An appendable stream is the 8-bit {@link #TAG}, a complete stream in the
+ *  original format, 0s up to a whole byte, and a trailer of
+ *  {@link #TRAILER_BYTES} bytes: the 64-bit size of the bitmap in bits, the
+ *  64-bit offset in bits of the first code of the last run, the 64-bit
+ *  length of the last run and the 32-bit index of its first code, whose
+ *  parity gives its colour. Decoders read it like the original format and
+ *  never look at the trailer.
+ *  <p>
+ *  To append a strip, the trailer is read from the end of the file and the
+ *  codes are rewritten from the start of the last run, since the strip's
+ *  first run may continue it: the last run and the strip's runs are joined
+ *  wherever the colours meet, so the result is exactly what compressing the
+ *  whole bitmap at once would give. Then a new trailer is written and the
+ *  32-bit code count at the front of the stream is patched in place. The
+ *  count stays at the front so that streams are still decoded in one pass
+ *  from a pipe; the trailer is what spares the append from reading
+ *  everything before it.
+ *  <p>
+ *  The codec must be able to code any run length, as fixed-width,
+ *  Golomb-Rice and the built-in fax codes can; Huffman codes fitted to the
+ *  first strip may have no code for the runs of later ones, so they are
+ *  refused before anything is written. An append is
+ *  not atomic: a crash part way through leaves the last run and the
+ *  trailer damaged.
+ *
+ *  @author Kieran Pichai
+ */
+public class AppendableCompressor {
+    /**
+     * Leading byte of an appendable stream. Never a legal codec id, so
+     * {@link BitmapCompressor#expand(BinaryIn, BinaryOut)} can tell the formats apart.
+     */
+    public static final int TAG = 0x83;
+
+    /**
+     * Size of the trailer at the end of an appendable stream, in bytes.
+     */
+    public static final int TRAILER_BYTES = 8 + 8 + 8 + 4;
+
+    // don't instantiate
+    private AppendableCompressor() { }
+
+    /**
+     * Reads a sequence of bits from {@code in}, compresses them as an
+     * appendable stream, and writes the results to {@code out}, which must
+     * be at the start of its stream. The output is flushed but neither
+     * stream is closed.
+     *
+     * @param in the first strip of the bitmap
+     * @param out where to write the compressed bitmap
+     * @param codec the code to write run lengths with
+     * @throws IllegalArgumentException if {@code codec} can't code every run length
+     */
+    public static void compress(BinaryIn in, BinaryOut out, RunCodec codec) {
+        checkCodec(codec);
+        RunList runs = new RunList();
+        RunScanner scanner = new RunScanner(runs);
+        scanner.scan(in);
+        scanner.finish();
+        long bits = 0;
+        long numCodes = 0;
+        for (int i = 0; i < runs.size(); i++) {
+            bits += runs.get(i);
+            numCodes += codec.codes(runs.get(i));
+        }
+        out.write(TAG, 8);
+        codec.writeHeader(out);
+        out.write(checkCodes(numCodes));
+        Trailer trailer = writeRuns(out, runs, false, 0, codec);
+        trailer.bits = bits;
+        out.flush();
+        trailer.write(out);
+        out.flush();
+    }
+
+    /**
+     * Compresses a strip of bits read from {@code in} onto the end of an
+     * appendable stream, in place. Only the last run of the stream is read
+     * back and rewritten, so the cost doesn't depend on the size of the file.
+     *
+     * @param file the appendable stream to extend
+     * @param in the next strip of the bitmap
+     * @throws IllegalArgumentException if {@code file} isn't an appendable stream
+     *         or its codec can't code every run length
+     * @throws IllegalStateException if the file can't be read or written
+     */
+    public static void append(Path file, InputStream in) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Codec and code count come from the front of the stream, the rest of the state from the trailer
+            BinaryIn header = new BinaryIn(Channels.newInputStream(channel.position(0)));
+            if (header.readInt(8) != TAG) throw new IllegalArgumentException(file + " is not an appendable stream");
+            RunCodec codec = RunCodec.readHeader(header.readInt(8), header);
+            // Checked before the strip is read, since failing part way through the rewrite would damage the file
+            checkCodec(codec);
+            long countOffset = header.position();
+            int numCodes = header.readInt();
+            Trailer trailer = Trailer.read(channel);
+
+            RunList strip = new RunList();
+            RunScanner scanner = new RunScanner(strip);
+            scanner.scan(new BinaryIn(in));
+            scanner.finish();
+            RunList runs = join(trailer, strip);
+            long bits = trailer.bits;
+            for (int i = 0; i < strip.size(); i++) bits += strip.get(i);
+            long total = trailer.index;
+            for (int i = 0; i < runs.size(); i++) total += codec.codes(runs.get(i));
+            checkCodes(total);
+
+            // The byte holding the start of the last run keeps the bits of the code before it
+            long start = trailer.offset;
+            int keep = (int) (start & 7);
+            int prefix = keep == 0 ? 0 : readByte(channel, start >>> 3) >>> (8 - keep);
+            channel.position(start >>> 3);
+            BinaryOut out = new BinaryOut(Channels.newOutputStream(channel));
+            out.writeBits(prefix, keep);
+            Trailer next = writeRuns(out, runs, (trailer.index & 1) == 1, trailer.index, codec);
+            next.offset += start - keep;
+            next.bits = bits;
+            out.flush();
+            next.write(out);
+            out.flush();
+            // The rewritten last run can be shorter than the old one with its trailer
+            channel.truncate(channel.position());
+            if (total != numCodes) writeInt(channel, countOffset, (int) total);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not append to " + file, e);
+        }
+    }
+
+    // The last run followed by the strip's runs, joined where the colours meet, starting with the last run's colour
+    private static RunList join(Trailer trailer, RunList strip) {
+        RunList runs = new RunList();
+        boolean colour = (trailer.index & 1) == 1;
+        long length = trailer.length;
+        for (int i = 0; i < strip.size(); i++) {
+            long n = strip.get(i);
+            // An empty run, such as the strip's first run of 0s when it starts with a 1, joins nothing
+            if (n == 0) continue;
+            boolean black = (i & 1) == 1;
+            if (black != colour) {
+                runs.run(length);
+                colour = black;
+                length = 0;
+            }
+            length += n;
+        }
+        runs.run(length);
+        return runs;
+    }
+
+    // Writes alternating runs starting with the given colour, returning the trailer for the last one
+    private static Trailer writeRuns(BinaryOut out, RunList runs, boolean black, long index, RunCodec codec) {
+        Trailer trailer = new Trailer();
+        for (int i = 0; i < runs.size(); i++) {
+            if (i == runs.size() - 1) {
+                trailer.offset = out.position();
+                trailer.index = (int) index;
+                trailer.length = runs.get(i);
+            }
+            codec.writeRun(out, runs.get(i), black);
+            index += codec.codes(runs.get(i));
+            black = !black;
+        }
+        return trailer;
+    }
+
+    // Strips appended later may have runs of any length, so the codec must have a code for each
+    private static void checkCodec(RunCodec codec) {
+        if (!codec.codesEveryLength()) {
+            throw new IllegalArgumentException("Appendable streams need a codec with a code for every run length, not fitted Huffman tables");
+        }
+    }
+
+    // The code count is written as a 32-bit int
+    private static int checkCodes(long numCodes) {
+        if (numCodes > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many codes for one stream: " + numCodes);
+        return (int) numCodes;
+    }
+
+    // Reads the byte at the given offset in the file
+    private static int readByte(FileChannel channel, long offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1);
+        if (channel.read(b, offset) != 1) throw new IllegalArgumentException("Appendable stream is cut short");
+        return b.get(0) & 0xff;
+    }
+
+    // Overwrites 32 bits at the given offset in bits, keeping the bits around them in the 5 bytes they touch
+    private static void writeInt(FileChannel channel, long bitOffset, int x) throws IOException {
+        int shift = (int) (bitOffset & 7);
+        ByteBuffer b = ByteBuffer.allocate(5);
+        channel.read(b, bitOffset >>> 3);
+        long word = 0;
+        for (int i = 0; i < 5; i++) word = (word << 8) | (b.get(i) & 0xff);
+        long mask = 0xffffffffL << (8 - shift);
+        word = (word & ~mask) | ((x & 0xffffffffL) << (8 - shift));
+        for (int i = 0; i < 5; i++) b.put(i, (byte) (word >>> (32 - 8 * i)));
+        // A count that starts on a byte boundary ends on one, so the fifth byte isn't touched
+        b.position(0).limit(shift == 0 ? 4 : 5);
+        channel.write(b, bitOffset >>> 3);
+    }
+
+    // Where to carry on from: the size of the bitmap and where, which and how long the last run is
+    private static final class Trailer {
+        private long bits;
+        private long offset;
+        private long length;
+        private int index;
+
+        void write(BinaryOut out) {
+            out.write(bits);
+            out.write(offset);
+            out.write(length);
+            out.write(index);
+        }
+
+        static Trailer read(FileChannel channel) throws IOException {
+            long size = channel.size();
+            ByteBuffer b = ByteBuffer.allocate(TRAILER_BYTES);
+            if (size < TRAILER_BYTES || channel.read(b, size - TRAILER_BYTES) != TRAILER_BYTES) {
+                throw new IllegalArgumentException("Appendable stream has no trailer");
+            }
+            Trailer trailer = new Trailer();
+            trailer.bits = b.getLong(0);
+            trailer.offset = b.getLong(8);
+            trailer.length = b.getLong(16);
+            trailer.index = b.getInt(24);
+            return trailer;
+        }
+    }
+
+    /**
+     * Reads the stream of an appendable stream whose {@link #TAG} has already
+     * been read from {@code in}, decodes it, and writes the results to
+     * {@code out}. The trailer is left unread.
+     *
+     * @param in the compressed bitmap, positioned just after the tag
+     * @param out where to write the expanded bitmap
+     */
+    public static void expandStream(BinaryIn in, BinaryOut out) {
+        BitmapCompressor.decodeRuns(in.readInt(8), in, out);
+    }
+
+    /**
+     * Starts an appendable stream from standard input ("-" and a code width,
+     * "gamma" or "fax", as for {@link BitmapCompressor#codec(String)}; codecs
+     * fitted to the first strip could not code the strips appended later) or
+     * appends standard input to one ("append" and the file).
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args[0].equals("-")) {
+            BinaryOut out = new BinaryOut(System.out);
+            compress(new BinaryIn(System.in), out, BitmapCompressor.codec(args[1]));
+            out.close();
+        }
+        else if (args[0].equals("append")) append(Paths.get(args[1]), System.in);
+        else throw new IllegalArgumentException("Illegal command line argument");
+    }
+}
@@ -0,0 +1,278 @@
+/******************************************************************************
+ *  Compilation:  javac BatchCompressor.java
+ *  Execution:    java BatchCompressor - 8 scans/ compressed/       (compress a directory)
+ *  Execution:    java BatchCompressor - auto @list.txt compressed/ (compress the files listed)
+ *  Execution:    java BatchCompressor + compressed/ expanded/ 16   (expand on 16 threads)
+ *  Dependencies: BinaryIn.java BinaryOut.java BitmapCompressor.java
+ *
+ *  Compresses or expands many files in one JVM, so a nightly run over tens
+ *  of thousands of small scans pays for JVM startup and JIT warm-up once.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ *  The {@code BatchCompressor} class compresses or expands every file of a
+ *  directory, or every file named in a manifest, into an output directory,
+ *  keeping each file's name. Two inputs with the same name would write the
+ *  same output, so a batch that has them is rejected before it starts.
+ *  <p>
+ *  Each file is one task on a fixed pool of worker threads, by default two
+ *  per core, since small files spend as much time waiting on the disk as
+ *  compressing. The 64 KB blocks that {@link BinaryIn} and {@link BinaryOut}
+ *  read and write through are borrowed from a pool and returned when the
+ *  file is done, so a batch allocates a few blocks per worker instead of two
+ *  per file. A line is printed for each file as it finishes, giving its
+ *  sizes or the reason it failed; a failed file doesn't stop the others.
+ *  Each output is written to a temporary file in the output directory and
+ *  moved into place only once it is complete, so a failed file leaves
+ *  neither a truncated output nor its temporary file behind.
+ *
+ *  @author Kieran Pichai
+ */
+public class BatchCompressor {
+    /**
+     * The outcome of one file of a batch.
+     */
+    public static final class Result {
+        private final Path input;
+        private final Path output;
+        private final long inputBytes;
+        private final long outputBytes;
+        private final Exception error;
+
+        private Result(Path input, Path output, long inputBytes, long outputBytes, Exception error) {
+            this.input = input;
+            this.output = output;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.error = error;
+        }
+
+        /** @return the file that was read */
+        public Path input() {
+            return input;
+        }
+
+        /** @return the file that was written */
+        public Path output() {
+            return output;
+        }
+
+        /** @return the size of the input in bytes */
+        public long inputBytes() {
+            return inputBytes;
+        }
+
+        /** @return the size of the output in bytes, or 0 if the file failed */
+        public long outputBytes() {
+            return outputBytes;
+        }
+
+        /** @return why the file failed, or {@code null} if it succeeded */
+        public Exception error() {
+            return error;
+        }
+    }
+
+    // Blocks for BinaryIn and BinaryOut, handed out to one file at a time
+    private static final class BlockPool {
+        private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+        byte[] take() {
+            byte[] block = free.poll();
+            return block == null ? new byte[BinaryIn.BLOCK_SIZE] : block;
+        }
+
+        void give(byte[] block) {
+            free.offer(block);
+        }
+    }
+
+    // don't instantiate
+    private BatchCompressor() { }
+
+    /**
+     * Compresses or expands each input file into a file of the same name in
+     * the output directory, on the given number of threads, and reports each
+     * file to {@code log} as it finishes.
+     *
+     * @param mode the codec to compress with, named as on the
+     *        {@link BitmapCompressor} command line, or {@code null} to expand
+     * @param inputs the files to read
+     * @param outputDir the directory to write to; created if it doesn't exist
+     * @param threads the number of worker threads
+     * @param log where to report each file
+     * @return the result of every file, in the order of {@code inputs}
+     * @throws IllegalArgumentException unless {@code threads >= 1} and no two
+     *         inputs have the same file name
+     * @throws IllegalStateException if the output directory can't be created
+     */
+    public static List<Result> run(String mode, List<Path> inputs, Path outputDir, int threads, PrintStream log) {
+        if (threads < 1) throw new IllegalArgumentException("Illegal number of threads = " + threads);
+        Map<Path, Path> names = new HashMap<>();
+        for (Path input : inputs) {
+            Path other = names.putIfAbsent(input.getFileName(), input);
+            if (other != null) {
+                throw new IllegalArgumentException("Inputs " + other + " and " + input + " would both write "
+                        + outputDir.resolve(input.getFileName()));
+            }
+        }
+        try {
+            Files.createDirectories(outputDir);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not create " + outputDir, e);
+        }
+        BlockPool blocks = new BlockPool();
+        AtomicInteger done = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>(inputs.size());
+            for (Path input : inputs) {
+                Path output = outputDir.resolve(input.getFileName());
+                futures.add(workers.submit(() -> {
+                    Result result = runFile(mode, input, output, blocks);
+                    report(log, done.incrementAndGet(), inputs.size(), result);
+                    return result;
+                }));
+            }
+            List<Result> results = new ArrayList<>(inputs.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Batch interrupted", e);
+                }
+                catch (ExecutionException e) {
+                    // runFile catches every exception a file can throw, so only errors get here
+                    throw new IllegalStateException("Batch failed", e.getCause());
+                }
+            }
+            return results;
+        }
+        finally {
+            workers.shutdownNow();
+        }
+    }
+
+    // Compresses or expands one file, catching its failure so the rest of the batch goes on
+    private static Result runFile(String mode, Path input, Path output, BlockPool blocks) {
+        byte[] inBlock = blocks.take();
+        byte[] outBlock = blocks.take();
+        Path temp = null;
+        try {
+            // Hidden and uniquely named, in the output directory so the move can be atomic. Opened like any
+            // other output rather than with createTempFile, which would make it, and so the output, owner-only
+            Path part = output.resolveSibling("." + output.getFileName() + "."
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".part");
+            OutputStream os = Files.newOutputStream(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            temp = part;
+            try (os; InputStream is = Files.newInputStream(input)) {
+                BinaryIn in = new BinaryIn(is, inBlock);
+                BinaryOut out = new BinaryOut(os, outBlock);
+                if (mode == null) BitmapCompressor.expand(in, out);
+                else              BitmapCompressor.compress(in, out, mode);
+            }
+            Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE);
+            return new Result(input, output, Files.size(input), Files.size(output), null);
+        }
+        catch (Exception e) {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                }
+                catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            return new Result(input, output, 0, 0, e);
+        }
+        finally {
+            blocks.give(inBlock);
+            blocks.give(outBlock);
+        }
+    }
+
+    // Prints one line per file; println on a PrintStream is atomic, so lines from different workers never mix
+    private static void report(PrintStream log, int done, int total, Result result) {
+        if (result.error() == null) {
+            log.println("[" + done + "/" + total + "] " + result.input() + ": "
+                    + result.inputBytes() + " -> " + result.outputBytes() + " bytes");
+        }
+        else {
+            log.println("[" + done + "/" + total + "] " + result.input() + ": FAILED " + result.error());
+        }
+    }
+
+    // The files to process: every regular file in a directory, sorted by name, or the lines of a manifest after '@'
+    private static List<Path> inputs(String arg) throws IOException {
+        if (arg.startsWith("@")) {
+            try (Stream<String> lines = Files.lines(Paths.get(arg.substring(1)))) {
+                return lines.filter(line -> !line.isBlank()).map(Paths::get).collect(Collectors.toList());
+            }
+        }
+        try (Stream<Path> files = Files.list(Paths.get(arg))) {
+            return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Compresses ("-" followed by a codec as for {@link BitmapCompressor})
+     * or expands ("+") every file of a directory, or of a manifest given as
+     * {@code @file} with one path per line, into an output directory, with an
+     * optional number of threads. Progress goes to standard output and the
+     * exit status is the number of files that failed, up to 255.
+     *
+     * @param args the command-line arguments
+     * @throws IOException if the directory or manifest can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        int first;
+        String mode;
+        if      (args[0].equals("-")) { mode = args[1]; first = 2; }
+        else if (args[0].equals("+")) { mode = null;    first = 1; }
+        else throw new IllegalArgumentException("Illegal command line argument");
+        List<Path> inputs = inputs(args[first]);
+        Path outputDir = Paths.get(args[first + 1]);
+        int threads = args.length > first + 2 ? Integer.parseInt(args[first + 2])
+                                              : 2 * Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        List<Result> results = run(mode, inputs, outputDir, threads, System.out);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = 0;
+        int failed = 0;
+        for (Result result : results) {
+            bytes += result.inputBytes();
+            if (result.error() != null) failed++;
+        }
+        System.out.printf("%d files, %d failed, %d bytes in %.2f s (%.1f MB/s)%n",
+                results.size(), failed, bytes, seconds, bytes / 1e6 / seconds);
+        System.exit(Math.min(failed, 255));
+    }
+}
@@ -0,0 +1,459 @@
+/******************************************************************************
+ *  Compilation:  javac BinaryIn.java
+ *  Execution:    none (library class)
+ *  Dependencies: none
+ *
+ *  Supports reading binary data from an input stream.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ *  The <code>BinaryIn</code> data type provides a binary input stream over
+ *  any {@code InputStream}. It can process the bits
+ *  one bit at a time (as a {@code boolean}),
+ *  8 bits at a time (as a {@code byte} or {@code char}),
+ *  16 bits at a time (as a {@code short}), 32 bits at a time
+ *  (as an {@code int} or {@code float}), or 64 bits at a time (as a
+ *  {@code double} or {@code long}).
+ *  <p>
+ *  All primitive types are assumed to be represented using their
+ *  standard Java representations, in big-endian (most significant
+ *  byte first) order.
+ *  <p>
+ *  Input is read from the stream in large blocks and served from a 64-bit
+ *  bit buffer, so reading any field of up to 32 bits, or peeking at and
+ *  skipping bits, costs a single shift rather than one call per bit.
+ *  A {@code BinaryIn} can also read straight out of a {@code ByteBuffer},
+ *  heap or direct, with no stream and no block in between.
+ *  Each instance keeps its own state, so any number of streams can be
+ *  read at once from different threads, one thread per instance.
+ *
+ *  @author Robert Sedgewick
+ *  @author Kevin Wayne
+ */
+public final class BinaryIn {
+    /**
+     * Size in bytes of the block a {@code BinaryIn} reads from its stream at a time,
+     * unless it is given a block of its own.
+     */
+    public static final int BLOCK_SIZE = 1 << 16;
+
+    private final InputStream in;       // input stream
+    private final byte[] block;         // bytes read from the stream but not yet buffered
+    private ByteBuffer source;          // buffer read instead of the stream and block, or null
+    private int sourceStart;            // position of the source when this BinaryIn was made or reset
+    private int pos;                    // index of next unbuffered byte in block
+    private int limit;                  // number of valid bytes in block
+    private boolean eof;                // has the stream reached its end?
+    private long buffer;                // bit buffer, next bit in the most significant position
+    private int n;                      // number of bits left in buffer
+    private long streamBytes;           // number of bytes read from the stream so far
+
+    /**
+     * Initializes a binary input stream from standard input.
+     */
+    public BinaryIn() {
+        this(System.in);
+    }
+
+    /**
+     * Initializes a binary input stream from an {@code InputStream}.
+     * Nothing is read from the stream until the first bit is requested.
+     *
+     * @param is the {@code InputStream} object
+     */
+    public BinaryIn(InputStream is) {
+        if (is == null) throw new IllegalArgumentException("input stream is null");
+        in = is;
+        block = new byte[BLOCK_SIZE];
+        source = null;
+        sourceStart = 0;
+    }
+
+    /**
+     * Initializes a binary input stream from an {@code InputStream}, reading
+     * it through the given block instead of allocating one, so callers that
+     * open many streams can reuse their blocks. The block must not be used
+     * for anything else until this {@code BinaryIn} is done with.
+     *
+     * @param is the {@code InputStream} object
+     * @param block the buffer to read the stream into
+     * @throws IllegalArgumentException if the block is empty
+     */
+    public BinaryIn(InputStream is, byte[] block) {
+        if (is == null) throw new IllegalArgumentException("input stream is null");
+        if (block.length == 0) throw new IllegalArgumentException("block is empty");
+        in = is;
+        this.block = block;
+        source = null;
+        sourceStart = 0;
+    }
+
+    /**
+     * Initializes a binary input stream that reads the bytes of a buffer from
+     * its position to its limit, in place. Reading moves the position of the
+     * buffer up to eight bytes ahead of the bits consumed, since whole words
+     * are buffered; {@link #position()} gives how far the bits really got.
+     *
+     * @param buffer the {@code ByteBuffer} to read
+     */
+    public BinaryIn(ByteBuffer buffer) {
+        if (buffer == null) throw new IllegalArgumentException("buffer is null");
+        in = null;
+        block = null;
+        source = buffer;
+        sourceStart = buffer.position();
+    }
+
+    /**
+     * Points a binary input stream made from a buffer at another buffer,
+     * from its position, dropping any bits buffered from the old one, so a
+     * caller that reads many buffers needs only one {@code BinaryIn}.
+     *
+     * @param buffer the {@code ByteBuffer} to read
+     * @throws IllegalStateException if this {@code BinaryIn} reads a stream
+     */
+    public void reset(ByteBuffer buffer) {
+        if (buffer == null) throw new IllegalArgumentException("buffer is null");
+        if (source == null) throw new IllegalStateException("Not reading a buffer");
+        source = buffer;
+        sourceStart = buffer.position();
+        this.buffer = 0;
+        n = 0;
+    }
+
+    // top up the bit buffer with whole bytes until it holds more than 56 bits or the input ends
+    private void fillBuffer() {
+        if (source != null) {
+            for (int bytes = Math.min((64 - n) >>> 3, source.remaining()); bytes > 0; bytes--) {
+                buffer |= (source.get() & 0xffL) << (56 - n);
+                n += 8;
+            }
+            return;
+        }
+        while (n <= 56) {
+            if (pos == limit && !fillBlock()) return;
+            // fast path, enough bytes in the block to top up in one go
+            int bytes = Math.min((64 - n) >>> 3, limit - pos);
+            for (int i = 0; i < bytes; i++) {
+                buffer |= (block[pos++] & 0xffL) << (56 - n);
+                n += 8;
+            }
+        }
+    }
+
+    // read the next block of bytes from the stream, returning false at end of stream
+    private boolean fillBlock() {
+        if (eof) return false;
+        try {
+            int read;
+            do {
+                read = in.read(block, 0, block.length);
+            } while (read == 0);
+            if (read < 0) {
+                eof = true;
+                return false;
+            }
+            pos = 0;
+            limit = read;
+            streamBytes += read;
+            return true;
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not read input stream", e);
+        }
+    }
+
+    // make sure at least r <= 57 bits are in the buffer
+    private void ensure(int r) {
+        if (n < r) fillBuffer();
+        if (n < r) throw new NoSuchElementException("Reading from empty input stream");
+    }
+
+    /**
+     * Close this input stream and release any associated system resources.
+     */
+    public void close() {
+        if (in == null) return;
+        try {
+            in.close();
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException("Could not close BinaryIn", ioe);
+        }
+    }
+
+    /**
+     * Returns true if the input stream is empty.
+     * @return true if and only if the input stream is empty
+     */
+    public boolean isEmpty() {
+        if (n == 0) fillBuffer();
+        return n == 0;
+    }
+
+    /**
+     * Returns true if at least <em>r</em> more bits can be read, reading ahead
+     * as far as the buffer allows but consuming nothing.
+     *
+     * @param  r number of bits wanted
+     * @return true if the next {@code r} bits are there to be read
+     * @throws IllegalArgumentException unless {@code 0 <= r <= 64}
+     */
+    public boolean hasBits(int r) {
+        if (r < 0 || r > 64) throw new IllegalArgumentException("Illegal value of r = " + r);
+        if (n < r) fillBuffer();
+        if (n >= r) return true;
+        // A topped-up buffer holds more than 56 bits, so any byte still unbuffered makes up the rest
+        if (n <= 56) return false;
+        if (source != null) return source.hasRemaining();
+        return pos < limit || fillBlock();
+    }
+
+    /**
+     * Returns the number of bits read or skipped so far, which is the offset
+     * of the next bit from where this {@code BinaryIn} started in its stream.
+     * @return the number of bits consumed so far
+     */
+    public long position() {
+        if (source != null) return 8L * (source.position() - sourceStart) - n;
+        return 8 * (streamBytes - (limit - pos)) - n;
+    }
+
+    /**
+     * Reads the next bit of data from the input stream and return as a boolean.
+     *
+     * @return the next bit of data from the input stream as a {@code boolean}
+     * @throws NoSuchElementException if the input stream is empty
+     */
+    public boolean readBoolean() {
+        ensure(1);
+        boolean bit = buffer < 0;
+        buffer <<= 1;
+        n--;
+        return bit;
+    }
+
+    /**
+     * Reads the next 8 bits from the input stream and return as an 8-bit char.
+     * Note that {@code char} is a 16-bit type;
+     * to read the next 16 bits as a char, use {@code readChar(16)}.
+     *
+     * @return the next 8 bits of data from the input stream as a {@code char}
+     * @throws NoSuchElementException if there are fewer than 8 bits available on the input stream
+     */
+    public char readChar() {
+        return (char) readBits(8);
+    }
+
+    /**
+     * Reads the next <em>r</em> bits from the input stream and return as an <em>r</em>-bit character.
+     *
+     * @param  r number of bits to read.
+     * @return the next r bits of data from the input stream as a {@code char}
+     * @throws NoSuchElementException if there are fewer than {@code r} bits available on the input stream
+     * @throws IllegalArgumentException unless {@code 1 <= r <= 16}
+     */
+    public char readChar(int r) {
+        if (r < 1 || r > 16) throw new IllegalArgumentException("Illegal value of r = " + r);
+        return (char) readBits(r);
+    }
+
+    // read the next 1 <= r <= 32 bits with a single shift
+    private int readBits(int r) {
+        ensure(r);
+        int x = (int) (buffer >>> (64 - r));
+        buffer <<= r;
+        n -= r;
+        return x;
+    }
+
+    /**
+     * Returns the next <em>r</em> bits from the input stream as an <em>r</em>-bit int
+     * without consuming them. If fewer than <em>r</em> bits are left, the missing
+     * low-order bits are returned as 0s.
+     *
+     * @param  r number of bits to look at.
+     * @return the next r bits of data from the input stream as a {@code int}
+     * @throws IllegalArgumentException unless {@code 1 <= r <= 32}
+     */
+    public int peekBits(int r) {
+        if (r < 1 || r > 32) throw new IllegalArgumentException("Illegal value of r = " + r);
+        if (n < r) fillBuffer();
+        return (int) (buffer >>> (64 - r));
+    }
+
+    /**
+     * Discards the next <em>r</em> bits from the input stream.
+     *
+     * @param  r number of bits to skip.
+     * @throws NoSuchElementException if there are fewer than {@code r} bits available on the input stream
+     * @throws IllegalArgumentException if {@code r} is negative
+     */
+    public void skipBits(long r) {
+        if (r < 0) throw new IllegalArgumentException("Illegal value of r = " + r);
+        while (r > 0) {
+            int k = (int) Math.min(r, 32);
+            ensure(k);
+            buffer <<= k;
+            n -= k;
+            r -= k;
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of data from the input stream and return as a string.
+     *
+     * @return the remaining bytes of data from the input stream as a {@code String}
+     * @throws NoSuchElementException if the input stream is empty or if the number of bits
+     *         available on the input stream is not a multiple of 8 (byte-aligned)
+     */
+    public String readString() {
+        if (isEmpty()) throw new NoSuchElementException("Reading from empty input stream");
+
+        StringBuilder sb = new StringBuilder();
+        while (!isEmpty()) {
+            char c = readChar();
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Reads the next 16 bits from the input stream and return as a 16-bit short.
+     *
+     * @return the next 16 bits of data from the input stream as a {@code short}
+     * @throws NoSuchElementException if there are fewer than 16 bits available on the input stream
+     */
+    public short readShort() {
+        return (short) readBits(16);
+    }
+
+    /**
+     * Reads the next 32 bits from the input stream and return as a 32-bit int.
+     *
+     * @return the next 32 bits of data from the input stream as a {@code int}
+     * @throws NoSuchElementException if there are fewer than 32 bits available on the input stream
+     */
+    public int readInt() {
+        return readBits(32);
+    }
+
+    /**
+     * Reads the next <em>r</em> bits from the input stream and return as an <em>r</em>-bit int.
+     *
+     * @param  r number of bits to read.
+     * @return the next r bits of data from the input stream as a {@code int}
+     * @throws NoSuchElementException if there are fewer than {@code r} bits available on the input stream
+     * @throws IllegalArgumentException unless {@code 1 <= r <= 32}
+     */
+    public int readInt(int r) {
+        if (r < 1 || r > 32) throw new IllegalArgumentException("Illegal value of r = " + r);
+        return readBits(r);
+    }
+
+    /**
+     * Reads the next 64 bits from the input stream and return as a 64-bit long.
+     *
+     * @return the next 64 bits of data from the input stream as a {@code long}
+     * @throws NoSuchElementException if there are fewer than 64 bits available on the input stream
+     */
+    public long readLong() {
+        // A whole word in the buffer, as when reading whole bytes, is returned as it is
+        if (n < 64) fillBuffer();
+        if (n == 64) {
+            long x = buffer;
+            buffer = 0;
+            n = 0;
+            return x;
+        }
+        long x = readBits(32) & 0xffffffffL;
+        return (x << 32) | (readBits(32) & 0xffffffffL);
+    }
+
+
+    /**
+     * Reads the next 64 bits from the input stream and return as a 64-bit double.
+     *
+     * @return the next 64 bits of data from the input stream as a {@code double}
+     * @throws NoSuchElementException if there are fewer than 64 bits available on the input stream
+     */
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Reads the next 32 bits from the input stream and return as a 32-bit float.
+     *
+     * @return the next 32 bits of data from the input stream as a {@code float}
+     * @throws NoSuchElementException if there are fewer than 32 bits available on the input stream
+     */
+    public float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+
+    /**
+     * Reads the next 8 bits from the input stream and return as an 8-bit byte.
+     *
+     * @return the next 8 bits of data from the input stream as a {@code byte}
+     * @throws NoSuchElementException if there are fewer than 8 bits available on the input stream
+     */
+    public byte readByte() {
+        char c = readChar();
+        return (byte) (c & 0xff);
+    }
+
+    /**
+     * Reads the next {@code len} bytes from the input stream into {@code b}.
+     * When the input is at a byte boundary, the bytes are copied straight
+     * from the block read from the stream; otherwise they are read eight
+     * at a time through the bit buffer.
+     *
+     * @param b the array to read into
+     * @param off the index in {@code b} of the first byte to read
+     * @param len the number of bytes to read
+     * @throws NoSuchElementException if there are fewer than {@code 8 * len} bits available on the input stream
+     * @throws IndexOutOfBoundsException if {@code off} and {@code len} don't fit in {@code b}
+     */
+    public void readBytes(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if ((n & 7) != 0) {
+            for (; len >= 4; len -= 4, off += 4) {
+                int x = readBits(32);
+                b[off]     = (byte) (x >>> 24);
+                b[off + 1] = (byte) (x >>> 16);
+                b[off + 2] = (byte) (x >>>  8);
+                b[off + 3] = (byte) x;
+            }
+            for (; len > 0; len--) b[off++] = (byte) readBits(8);
+            return;
+        }
+        // whole bytes already in the bit buffer come first, then the rest of the block
+        for (; len > 0 && n > 0; len--) {
+            b[off++] = (byte) (buffer >>> 56);
+            buffer <<= 8;
+            n -= 8;
+        }
+        if (source != null) {
+            if (source.remaining() < len) throw new NoSuchElementException("Reading from empty input stream");
+            source.get(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (pos == limit && !fillBlock()) throw new NoSuchElementException("Reading from empty input stream");
+            int k = Math.min(len, limit - pos);
+            System.arraycopy(block, pos, b, off, k);
+            pos += k;
+            off += k;
+            len -= k;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/******************************************************************************
+ *  Compilation:  javac BinaryOut.java
+ *  Execution:    none (library class)
+ *  Dependencies: none
+ *
+ *  Write binary data to an output stream, either one 1-bit boolean,
+ *  one 8-bit char, one 32-bit int, one 64-bit double, one 32-bit float,
+ *  or one 64-bit long at a time.
+ *
+ *  The bytes written are not aligned.
+ *
+ ******************************************************************************/
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ *  The <code>BinaryOut</code> data type provides a binary output stream over
+ *  any {@code OutputStream} for converting primitive type variables
+ *  ({@code boolean}, {@code byte}, {@code char},
+ *  {@code int}, {@code long}, {@code float}, and {@code double})
+ *  to sequences of bits and writing them to that stream.
+ *  Uses big-endian (most-significant byte first).
+ *  <p>
+ *  Bits are collected in a 64-bit accumulator and moved to a large byte
+ *  buffer a whole word at a time, so writing a field of any width, or a
+ *  long run of equal bits, costs one call rather than one per bit.
+ *  A {@code BinaryOut} can also write straight into a {@code ByteBuffer},
+ *  heap or direct, with no block or stream in between.
+ *  Each instance keeps its own state, so any number of streams can be
+ *  written at once from different threads, one thread per instance.
+ *  <p>
+ *  The client must {@code flush()} the output stream when finished writing bits.
+ *
+ *  @author Robert Sedgewick
+ *  @author Kevin Wayne
+ */
+public final class BinaryOut {
+    /**
+     * Size in bytes of the block a {@code BinaryOut} writes to its stream at a time,
+     * unless it is given a block of its own.
+     */
+    public static final int BLOCK_SIZE = 1 << 16;
+
+    private final OutputStream out;                 // output stream
+    private final byte[] block;                     // whole bytes waiting to be written
+    private ByteBuffer target;                      // buffer written instead of the block and stream, or null
+    private int targetStart;                        // position of the target when this BinaryOut was made or reset
+    private boolean swap;                           // is the target little-endian?
+    private int pos;                                // number of bytes used in block
+    private long buffer;                            // 64-bit accumulator, newest bit lowest
+    private int n;                                  // number of bits in accumulator
+    private long streamBytes;                       // number of bytes written to the stream so far
+
+    /**
+     * Initializes a binary output stream from standard output.
+     */
+    public BinaryOut() {
+        this(System.out);
+    }
+
+    /**
+     * Initializes a binary output stream from an {@code OutputStream}.
+     * @param os the {@code OutputStream}
+     */
+    public BinaryOut(OutputStream os) {
+        if (os == null) throw new IllegalArgumentException("output stream is null");
+        out = os;
+        block = new byte[BLOCK_SIZE];
+        target = null;
+        targetStart = 0;
+        swap = false;
+    }
+
+    /**
+     * Initializes a binary output stream from an {@code OutputStream}, writing
+     * it through the given block instead of allocating one, so callers that
+     * open many streams can reuse their blocks. The block must not be used
+     * for anything else until this {@code BinaryOut} is flushed for the last time.
+     *
+     * @param os the {@code OutputStream}
+     * @param block the buffer to collect whole bytes in
+     * @throws IllegalArgumentException if the block is shorter than 8 bytes
+     */
+    public BinaryOut(OutputStream os, byte[] block) {
+        if (os == null) throw new IllegalArgumentException("output stream is null");
+        if (block.length < 8) throw new IllegalArgumentException("block is shorter than 8 bytes");
+        out = os;
+        this.block = block;
+        target = null;
+        targetStart = 0;
+        swap = false;
+    }
+
+    /**
+     * Initializes a binary output stream that writes into a buffer from its
+     * position, in place, whatever byte order the buffer is set to. The
+     * position of the buffer moves as whole words are written and reaches
+     * the end of the bits at {@code flush()}.
+     *
+     * @param buffer the {@code ByteBuffer} to write
+     */
+    public BinaryOut(ByteBuffer buffer) {
+        if (buffer == null) throw new IllegalArgumentException("buffer is null");
+        out = null;
+        block = null;
+        target = buffer;
+        targetStart = buffer.position();
+        swap = buffer.order() != ByteOrder.BIG_ENDIAN;
+    }
+
+    /**
+     * Points a binary output stream made from a buffer at another buffer,
+     * from its position, dropping any bits not yet flushed to the old one,
+     * so a caller that writes many buffers needs only one {@code BinaryOut}.
+     *
+     * @param buffer the {@code ByteBuffer} to write
+     * @throws IllegalStateException if this {@code BinaryOut} writes a stream
+     */
+    public void reset(ByteBuffer buffer) {
+        if (buffer == null) throw new IllegalArgumentException("buffer is null");
+        if (target == null) throw new IllegalStateException("Not writing a buffer");
+        target = buffer;
+        targetStart = buffer.position();
+        swap = buffer.order() != ByteOrder.BIG_ENDIAN;
+        this.buffer = 0;
+        n = 0;
+    }
+
+    /**
+     * Writes the specified bit to the output stream.
+     */
+    private void writeBit(boolean bit) {
+        buffer <<= 1;
+        if (bit) buffer |= 1;
+        if (++n == 64) {
+            putLong(buffer);
+            n = 0;
+        }
+    }
+
+    /**
+     * Writes the 8-bit byte to the output stream.
+     */
+    private void writeByte(int x) {
+        assert x >= 0 && x < 256;
+        writeBits(x, 8);
+    }
+
+    // append a full 64-bit word to the block, draining the block first if it has no room
+    private void putLong(long x) {
+        if (target != null) {
+            target.putLong(swap ? Long.reverseBytes(x) : x);
+            return;
+        }
+        if (pos > block.length - 8) drainBlock();
+        block[pos++] = (byte) (x >>> 56);
+        block[pos++] = (byte) (x >>> 48);
+        block[pos++] = (byte) (x >>> 40);
+        block[pos++] = (byte) (x >>> 32);
+        block[pos++] = (byte) (x >>> 24);
+        block[pos++] = (byte) (x >>> 16);
+        block[pos++] = (byte) (x >>>  8);
+        block[pos++] = (byte) x;
+    }
+
+    // write the block to the output stream
+    private void drainBlock() {
+        try {
+            out.write(block, 0, pos);
+            streamBytes += pos;
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not write output stream", e);
+        }
+        pos = 0;
+    }
+
+    // move any remaining bits in the accumulator to the block, padding with 0s to a whole byte
+    private void clearBuffer() {
+        if (n == 0) return;
+        long x = buffer << (64 - n);
+        if (target != null) {
+            for (int shift = 56; n > 0; shift -= 8, n -= 8) {
+                target.put((byte) (x >>> shift));
+            }
+            n = 0;
+            buffer = 0;
+            return;
+        }
+        if (pos > block.length - 8) drainBlock();
+        for (int shift = 56; n > 0; shift -= 8, n -= 8) {
+            block[pos++] = (byte) (x >>> shift);
+        }
+        n = 0;
+        buffer = 0;
+    }
+
+    /**
+     * Flushes the output stream, padding 0s if number of bits written so far
+     * is not a multiple of 8.
+     */
+    public void flush() {
+        clearBuffer();
+        if (target != null) return;
+        drainBlock();
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not flush output stream", e);
+        }
+    }
+
+    /**
+     * Flushes and closes the output stream. Once the output stream is closed, you can no
+     * longer write bits to it.
+     */
+    public void close() {
+        flush();
+        if (out == null) return;
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not close output stream", e);
+        }
+    }
+
+
+    /**
+     * Returns the number of bits written so far, counting any 0s that
+     * {@code flush()} padded to whole bytes.
+     * @return the number of bits written so far
+     */
+    public long position() {
+        if (target != null) return 8L * (target.position() - targetStart) + n;
+        return 8 * (streamBytes + pos) + n;
+    }
+
+    /**
+     * Writes the specified bit to the output stream.
+     * @param x the {@code boolean} to write.
+     */
+    public void write(boolean x) {
+        writeBit(x);
+    }
+
+    /**
+     * Writes the low {@code count} bits of {@code bits} to the output stream,
+     * most significant first, with a single shift into the accumulator.
+     * @param bits the bits to write; bits above the low {@code count} are ignored.
+     * @param count the number of bits to write.
+     * @throws IllegalArgumentException if {@code count} is not between 0 and 64.
+     */
+    public void writeBits(long bits, int count) {
+        if (count < 0 || count > 64) throw new IllegalArgumentException("Illegal bit count = " + count);
+        int free = 64 - n;
+        if (count < free) {
+            // bits above count are shifted out before the accumulator is ever written
+            buffer = (buffer << count) | (bits & ((1L << count) - 1));
+            n += count;
+            return;
+        }
+        // fill the accumulator to a whole word and keep the rest
+        int rest = count - free;
+        long word;
+        if (n == 0) word = bits;
+        else        word = (buffer << free) | ((bits >>> rest) & ((1L << free) - 1));
+        putLong(word);
+        buffer = bits;
+        n = rest;
+    }
+
+    /**
+     * Writes {@code count} copies of the specified bit to the output stream.
+     * Only the bits before the first and after the last word boundary go
+     * through the accumulator; everything in between is filled in as whole
+     * bytes of 0x00 or 0xFF.
+     * @param bit the {@code boolean} to repeat.
+     * @param count the number of times to write it.
+     * @throws IllegalArgumentException if {@code count} is negative.
+     */
+    public void writeRepeated(boolean bit, long count) {
+        if (count < 0) throw new IllegalArgumentException("Illegal repeat count = " + count);
+        long fill = bit ? -1L : 0L;
+
+        // unaligned head, until the accumulator is empty
+        int free = 64 - n;
+        if (count < free) {
+            writeBits(fill, (int) count);
+            return;
+        }
+        if (n != 0) {
+            writeBits(fill, free);
+            count -= free;
+        }
+
+        // word-aligned middle
+        if (target != null) {
+            for (long words = count >>> 6; words > 0; words--) target.putLong(fill);
+        }
+        else for (long bytes = (count >>> 6) << 3; bytes > 0; ) {
+            if (pos == block.length) drainBlock();
+            int len = (int) Math.min(bytes, block.length - pos);
+            Arrays.fill(block, pos, pos + len, (byte) fill);
+            pos += len;
+            bytes -= len;
+        }
+
+        // unaligned tail
+        writeBits(fill, (int) (count & 63));
+    }
+
+    /**
+     * Writes the 8-bit byte to the output stream.
+     * @param x the {@code byte} to write.
+     */
+    public void write(byte x) {
+        writeByte(x & 0xff);
+    }
+
+    /**
+     * Writes {@code len} bytes of {@code b} to the output stream. When the
+     * output is at a byte boundary, the bytes are copied straight into the
+     * block written to the stream; otherwise they go through the accumulator
+     * eight at a time.
+     * @param b the bytes to write.
+     * @param off the index in {@code b} of the first byte to write.
+     * @param len the number of bytes to write.
+     * @throws IndexOutOfBoundsException if {@code off} and {@code len} don't fit in {@code b}.
+     */
+    public void write(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if ((n & 7) != 0) {
+            for (; len >= 8; len -= 8, off += 8) {
+                long x = 0;
+                for (int i = 0; i < 8; i++) x = (x << 8) | (b[off + i] & 0xffL);
+                writeBits(x, 64);
+            }
+            for (; len > 0; len--) writeByte(b[off++] & 0xff);
+            return;
+        }
+        // the accumulator holds whole bytes, so moving them to the block adds no padding
+        clearBuffer();
+        if (target != null) {
+            target.put(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (pos == block.length) drainBlock();
+            int k = Math.min(len, block.length - pos);
+            System.arraycopy(b, off, block, pos, k);
+            pos += k;
+            off += k;
+            len -= k;
+        }
+    }
+
+    /**
+     * Writes the 32-bit int to the output stream.
+     * @param x the {@code int} to write.
+     */
+    public void write(int x) {
+        writeBits(x, 32);
+    }
+
+    /**
+     * Writes the <em>r</em>-bit int to the output stream.
+     * @param x the {@code int} to write.
+     * @param r the number of relevant bits in the char.
+     * @throws IllegalArgumentException if {@code r} is not between 1 and 32.
+     * @throws IllegalArgumentException if {@code x} is not between 0 and 2<sup>r</sup> - 1.
+     */
+    public void write(int x, int r) {
+        if (r == 32) {
+            write(x);
+            return;
+        }
+        if (r < 1 || r > 32)        throw new IllegalArgumentException("Illegal value for r = " + r);
+        if (x < 0 || (r < 31 && x >= (1 << r))) throw new IllegalArgumentException("Illegal " + r + "-bit char = " + x);
+        writeBits(x, r);
+    }
+
+    /**
+     * Writes the 64-bit double to the output stream.
+     * @param x the {@code double} to write.
+     */
+    public void write(double x) {
+        write(Double.doubleToRawLongBits(x));
+    }
+
+    /**
+     * Writes the 64-bit long to the output stream.
+     * @param x the {@code long} to write.
+     */
+    public void write(long x) {
+        writeBits(x, 64);
+    }
+
+    /**
+     * Writes the 32-bit float to the output stream.
+     * @param x the {@code float} to write.
+     */
+    public void write(float x) {
+        write(Float.floatToRawIntBits(x));
+    }
+
+    /**
+     * Writes the 16-bit int to the output stream.
+     * @param x the {@code short} to write.
+     */
+    public void write(short x) {
+        writeBits(x, 16);
+    }
+
+    /**
+     * Writes the 8-bit char to the output stream.
+     * @param x the {@code char} to write.
+     * @throws IllegalArgumentException if {@code x} is not between 0 and 255.
+     */
+    public void write(char x) {
+        if (x < 0 || x >= 256) throw new IllegalArgumentException("Illegal 8-bit char = " + x);
+        writeByte(x);
+    }
+
+    /**
+     * Writes the <em>r</em>-bit char to the output stream.
+     * @param x the {@code char} to write.
+     * @param r the number of relevant bits in the char.
+     * @throws IllegalArgumentException if {@code r} is not between 1 and 16.
+     * @throws IllegalArgumentException if {@code x} is not between 0 and 2<sup>r</sup> - 1.
+     */
+    public void write(char x, int r) {
+        if (r == 8) {
+            write(x);
+            return;
+        }
+        if (r < 1 || r > 16) throw new IllegalArgumentException("Illegal value for r = " + r);
+        if (x >= (1 << r))   throw new IllegalArgumentException("Illegal " + r + "-bit char = " + x);
+        writeBits(x, r);
+    }
+
+    /**
+     * Writes the string of 8-bit characters to the output stream.
+     * @param s the {@code String} to write.
+     * @throws IllegalArgumentException if any character in the string is not
+     * between 0 and 255.
+     */
+    public void write(String s) {
+        for (int i = 0; i < s.length(); i++)
+            write(s.charAt(i));
+    }
+
+    /**
+     * Writes the string of <em>r</em>-bit characters to the output stream.
+     * @param s the {@code String} to write.
+     * @param r the number of relevant bits in each character.
+     * @throws IllegalArgumentException if r is not between 1 and 16.
+     * @throws IllegalArgumentException if any character in the string is not
+     * between 0 and 2<sup>r</sup> - 1.
+     */
+    public void write(String s, int r) {
+        for (int i = 0; i < s.length(); i++)
+            write(s.charAt(i), r);
+    }
+}
@@ -1,7 +1,7 @@
 /******************************************************************************
  *  Compilation:  javac BinaryStdIn.java
  *  Execution:    java BinaryStdIn < input > output
- *  Dependencies: none
+ *  Dependencies: BinaryIn.java BinaryStdOut.java
  *
  *  Supports reading binary data from standard input.
  *
@@ -10,8 +10,6 @@
  *
  ******************************************************************************/
 
-import java.io.BufferedInputStream;
-import java.io.IOException;
 import java.util.NoSuchElementException;
 
 /**
@@ -27,6 +25,9 @@ import java.util.NoSuchElementException;
  *  standard Java representations, in big-endian (most significant
  *  byte first) order.
  *  <p>
+ *  All calls are forwarded to a single {@link BinaryIn} over {@code System.in};
+ *  use {@code BinaryIn} directly to read several streams at once.
+ *  <p>
  *  The client should not intermix calls to {@code BinaryStdIn} with calls
  *  to {@code StdIn} or {@code System.in};
  *  otherwise unexpected behavior will result.
@@ -35,49 +36,24 @@ import java.util.NoSuchElementException;
  *  @author Kevin Wayne
  */
 public final class BinaryStdIn {
-    private static final int EOF = -1;      // end of file
-
-    private static BufferedInputStream in;  // input stream
-    private static int buffer;              // one character buffer
-    private static int n;                   // number of bits left in buffer
-    private static boolean isInitialized;   // has BinaryStdIn been called for first time?
+    private static BinaryIn in;   // default instance over System.in, created on first use
 
     // don't instantiate
     private BinaryStdIn() { }
 
-    // fill buffer
-    private static void initialize() {
-        in = new BufferedInputStream(System.in);
-        buffer = 0;
-        n = 0;
-        fillBuffer();
-        isInitialized = true;
-    }
-
-    private static void fillBuffer() {
-        try {
-            buffer = in.read();
-            n = 8;
-        }
-        catch (IOException e) {
-            System.out.println("EOF");
-            buffer = EOF;
-            n = -1;
-        }
+    // the default instance
+    private static BinaryIn in() {
+        if (in == null) in = new BinaryIn(System.in);
+        return in;
     }
 
     /**
      * Close this input stream and release any associated system resources.
      */
     public static void close() {
-        if (!isInitialized) initialize();
-        try {
-            in.close();
-            isInitialized = false;
-        }
-        catch (IOException ioe) {
-            throw new IllegalStateException("Could not close BinaryStdIn", ioe);
-        }
+        if (in == null) return;
+        in.close();
+        in = null;
     }
 
     /**
@@ -85,8 +61,7 @@ public final class BinaryStdIn {
      * @return true if and only if standard input is empty
      */
     public static boolean isEmpty() {
-        if (!isInitialized) initialize();
-        return buffer == EOF;
+        return in().isEmpty();
     }
 
     /**
@@ -96,11 +71,7 @@ public final class BinaryStdIn {
      * @throws NoSuchElementException if standard input is empty
      */
     public static boolean readBoolean() {
-        if (isEmpty()) throw new NoSuchElementException("Reading from empty input stream");
-        n--;
-        boolean bit = ((buffer >> n) & 1) == 1;
-        if (n == 0) fillBuffer();
-        return bit;
+        return in().readBoolean();
     }
 
     /**
@@ -112,26 +83,7 @@ public final class BinaryStdIn {
      * @throws NoSuchElementException if there are fewer than 8 bits available on standard input
      */
     public static char readChar() {
-        if (isEmpty()) throw new NoSuchElementException("Reading from empty input stream");
-
-        // special case when aligned byte
-        if (n == 8) {
-            int x = buffer;
-            fillBuffer();
-            return (char) (x & 0xff);
-        }
-
-        // combine last n bits of current buffer with first 8-n bits of new buffer
-        int x = buffer;
-        x <<= (8 - n);
-        int oldN = n;
-        fillBuffer();
-        if (isEmpty()) throw new NoSuchElementException("Reading from empty input stream");
-        n = oldN;
-        x |= (buffer >>> n);
-        return (char) (x & 0xff);
-        // the above code doesn't quite work for the last character if n = 8
-        // because buffer will be -1, so there is a special case for aligned byte
+        return in().readChar();
     }
 
     /**
@@ -143,18 +95,31 @@ public final class BinaryStdIn {
      * @throws IllegalArgumentException unless {@code 1 <= r <= 16}
      */
     public static char readChar(int r) {
-        if (r < 1 || r > 16) throw new IllegalArgumentException("Illegal value of r = " + r);
+        return in().readChar(r);
+    }
 
-        // optimize r = 8 case
-        if (r == 8) return readChar();
+    /**
+     * Returns the next <em>r</em> bits from standard input as an <em>r</em>-bit int
+     * without consuming them. If fewer than <em>r</em> bits are left, the missing
+     * low-order bits are returned as 0s.
+     *
+     * @param  r number of bits to look at.
+     * @return the next r bits of data from standard input as a {@code int}
+     * @throws IllegalArgumentException unless {@code 1 <= r <= 32}
+     */
+    public static int peekBits(int r) {
+        return in().peekBits(r);
+    }
 
-        char x = 0;
-        for (int i = 0; i < r; i++) {
-            x <<= 1;
-            boolean bit = readBoolean();
-            if (bit) x |= 1;
-        }
-        return x;
+    /**
+     * Discards the next <em>r</em> bits from standard input.
+     *
+     * @param  r number of bits to skip.
+     * @throws NoSuchElementException if there are fewer than {@code r} bits available on standard input
+     * @throws IllegalArgumentException if {@code r} is negative
+     */
+    public static void skipBits(long r) {
+        in().skipBits(r);
     }
 
     /**
@@ -165,17 +130,9 @@ public final class BinaryStdIn {
      *         available on standard input is not a multiple of 8 (byte-aligned)
      */
     public static String readString() {
-        if (isEmpty()) throw new NoSuchElementException("Reading from empty input stream");
-
-        StringBuilder sb = new StringBuilder();
-        while (!isEmpty()) {
-            char c = readChar();
-            sb.append(c);
-        }
-        return sb.toString();
+        return in().readString();
     }
 
-
     /**
      * Reads the next 16 bits from standard input and return as a 16-bit short.
      *
@@ -183,13 +140,7 @@ public final class BinaryStdIn {
      * @throws NoSuchElementException if there are fewer than 16 bits available on standard input
      */
     public static short readShort() {
-        short x = 0;
-        for (int i = 0; i < 2; i++) {
-            char c = readChar();
-            x <<= 8;
-            x |= c;
-        }
-        return x;
+        return in().readShort();
     }
 
     /**
@@ -199,13 +150,7 @@ public final class BinaryStdIn {
      * @throws NoSuchElementException if there are fewer than 32 bits available on standard input
      */
     public static int readInt() {
-        int x = 0;
-        for (int i = 0; i < 4; i++) {
-            char c = readChar();
-            x <<= 8;
-            x |= c;
-        }
-        return x;
+        return in().readInt();
     }
 
     /**
@@ -217,18 +162,7 @@ public final class BinaryStdIn {
      * @throws IllegalArgumentException unless {@code 1 <= r <= 32}
      */
     public static int readInt(int r) {
-        if (r < 1 || r > 32) throw new IllegalArgumentException("Illegal value of r = " + r);
-
-        // optimize r = 32 case
-        if (r == 32) return readInt();
-
-        int x = 0;
-        for (int i = 0; i < r; i++) {
-            x <<= 1;
-            boolean bit = readBoolean();
-            if (bit) x |= 1;
-        }
-        return x;
+        return in().readInt(r);
     }
 
     /**
@@ -238,16 +172,9 @@ public final class BinaryStdIn {
      * @throws NoSuchElementException if there are fewer than 64 bits available on standard input
      */
     public static long readLong() {
-        long x = 0;
-        for (int i = 0; i < 8; i++) {
-            char c = readChar();
-            x <<= 8;
-            x |= c;
-        }
-        return x;
+        return in().readLong();
     }
 
-
     /**
      * Reads the next 64 bits from standard input and return as a 64-bit double.
      *
@@ -255,7 +182,7 @@ public final class BinaryStdIn {
      * @throws NoSuchElementException if there are fewer than 64 bits available on standard input
      */
     public static double readDouble() {
-        return Double.longBitsToDouble(readLong());
+        return in().readDouble();
     }
 
     /**
@@ -265,10 +192,9 @@ public final class BinaryStdIn {
      * @throws NoSuchElementException if there are fewer than 32 bits available on standard input
      */
     public static float readFloat() {
-        return Float.intBitsToFloat(readInt());
+        return in().readFloat();
     }
 
-
     /**
      * Reads the next 8 bits from standard input and return as an 8-bit byte.
      *
@@ -276,8 +202,7 @@ public final class BinaryStdIn {
      * @throws NoSuchElementException if there are fewer than 8 bits available on standard input
      */
     public static byte readByte() {
-        char c = readChar();
-        return (byte) (c & 0xff);
+        return in().readByte();
     }
 
     /**
@@ -295,4 +220,4 @@ public final class BinaryStdIn {
         }
         BinaryStdOut.flush();
     }
-}
\ No newline at end of file
+}
@@ -1,7 +1,7 @@
 /******************************************************************************
  *  Compilation:  javac BinaryStdOut.java
  *  Execution:    java BinaryStdOut
- *  Dependencies: none
+ *  Dependencies: BinaryOut.java
  *
  *  Write binary data to standard output, either one 1-bit boolean,
  *  one 8-bit char, one 32-bit int, one 64-bit double, one 32-bit float,
@@ -10,8 +10,6 @@
  *  The bytes written are not aligned.
  *
  ******************************************************************************/
-import java.io.BufferedOutputStream;
-import java.io.IOException;
 
 /**
  *  The <code>BinaryStdOut</code> class provides static methods for converting
@@ -20,6 +18,9 @@ import java.io.IOException;
  *  to sequences of bits and writing them to standard output.
  *  Uses big-endian (most-significant byte first).
  *  <p>
+ *  All calls are forwarded to a single {@link BinaryOut} over {@code System.out};
+ *  use {@code BinaryOut} directly to write several streams at once.
+ *  <p>
  *  The client must {@code flush()} the output stream when finished writing bits.
  *  <p>
  *  The client should not intermix calls to {@code BinaryStdOut} with calls
@@ -30,77 +31,15 @@ import java.io.IOException;
  *  @author Kevin Wayne
  */
 public final class BinaryStdOut {
-    private static BufferedOutputStream out;  // output stream (standard output)
-    private static int buffer;                // 8-bit buffer of bits to write
-    private static int n;                     // number of bits remaining in buffer
-    private static boolean isInitialized;     // has BinaryStdOut been called for first time?
+    private static BinaryOut out;   // default instance over System.out, created on first use
 
     // don't instantiate
     private BinaryStdOut() { }
 
-    // initialize BinaryStdOut
-    private static void initialize() {
-        out = new BufferedOutputStream(System.out);
-        buffer = 0;
-        n = 0;
-        isInitialized = true;
-    }
-
-    /**
-     * Writes the specified bit to standard output.
-     */
-    private static void writeBit(boolean bit) {
-        if (!isInitialized) initialize();
-
-        // add bit to buffer
-        buffer <<= 1;
-        if (bit) buffer |= 1;
-
-        // if buffer is full (8 bits), write out as a single byte
-        n++;
-        if (n == 8) clearBuffer();
-    }
-
-    /**
-     * Writes the 8-bit byte to standard output.
-     */
-    private static void writeByte(int x) {
-        if (!isInitialized) initialize();
-
-        assert x >= 0 && x < 256;
-
-        // optimized if byte-aligned
-        if (n == 0) {
-            try {
-                out.write(x);
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-            }
-            return;
-        }
-
-        // otherwise write one bit at a time
-        for (int i = 0; i < 8; i++) {
-            boolean bit = ((x >>> (8 - i - 1)) & 1) == 1;
-            writeBit(bit);
-        }
-    }
-
-    // write out any remaining bits in buffer to standard output, padding with 0s
-    private static void clearBuffer() {
-        if (!isInitialized) initialize();
-
-        if (n == 0) return;
-        if (n > 0) buffer <<= (8 - n);
-        try {
-            out.write(buffer);
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-        n = 0;
-        buffer = 0;
+    // the default instance
+    private static BinaryOut out() {
+        if (out == null) out = new BinaryOut(System.out);
+        return out;
     }
 
     /**
@@ -108,13 +47,7 @@ public final class BinaryStdOut {
      * is not a multiple of 8.
      */
     public static void flush() {
-        clearBuffer();
-        try {
-            out.flush();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+        out().flush();
     }
 
     /**
@@ -122,23 +55,40 @@ public final class BinaryStdOut {
      * longer write bits to it.
      */
     public static void close() {
-        flush();
-        try {
-            out.close();
-            isInitialized = false;
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+        out().close();
+        out = null;
     }
 
-
     /**
      * Writes the specified bit to standard output.
      * @param x the {@code boolean} to write.
      */
     public static void write(boolean x) {
-        writeBit(x);
+        out().write(x);
+    }
+
+    /**
+     * Writes the low {@code count} bits of {@code bits} to standard output,
+     * most significant first, with a single shift into the accumulator.
+     * @param bits the bits to write; bits above the low {@code count} are ignored.
+     * @param count the number of bits to write.
+     * @throws IllegalArgumentException if {@code count} is not between 0 and 64.
+     */
+    public static void writeBits(long bits, int count) {
+        out().writeBits(bits, count);
+    }
+
+    /**
+     * Writes {@code count} copies of the specified bit to standard output.
+     * Only the bits before the first and after the last word boundary go
+     * through the accumulator; everything in between is filled in as whole
+     * bytes of 0x00 or 0xFF.
+     * @param bit the {@code boolean} to repeat.
+     * @param count the number of times to write it.
+     * @throws IllegalArgumentException if {@code count} is negative.
+     */
+    public static void writeRepeated(boolean bit, long count) {
+        out().writeRepeated(bit, count);
     }
 
     /**
@@ -146,7 +96,7 @@ public final class BinaryStdOut {
      * @param x the {@code byte} to write.
      */
     public static void write(byte x) {
-        writeByte(x & 0xff);
+        out().write(x);
     }
 
     /**
@@ -154,10 +104,7 @@ public final class BinaryStdOut {
      * @param x the {@code int} to write.
      */
     public static void write(int x) {
-        writeByte((x >>> 24) & 0xff);
-        writeByte((x >>> 16) & 0xff);
-        writeByte((x >>>  8) & 0xff);
-        writeByte((x >>>  0) & 0xff);
+        out().write(x);
     }
 
     /**
@@ -168,16 +115,7 @@ public final class BinaryStdOut {
      * @throws IllegalArgumentException if {@code x} is not between 0 and 2<sup>r</sup> - 1.
      */
     public static void write(int x, int r) {
-        if (r == 32) {
-            write(x);
-            return;
-        }
-        if (r < 1 || r > 32)        throw new IllegalArgumentException("Illegal value for r = " + r);
-        if (x < 0 || x >= (1 << r)) throw new IllegalArgumentException("Illegal " + r + "-bit char = " + x);
-        for (int i = 0; i < r; i++) {
-            boolean bit = ((x >>> (r - i - 1)) & 1) == 1;
-            writeBit(bit);
-        }
+        out().write(x, r);
     }
 
     /**
@@ -185,7 +123,7 @@ public final class BinaryStdOut {
      * @param x the {@code double} to write.
      */
     public static void write(double x) {
-        write(Double.doubleToRawLongBits(x));
+        out().write(x);
     }
 
     /**
@@ -193,14 +131,7 @@ public final class BinaryStdOut {
      * @param x the {@code long} to write.
      */
     public static void write(long x) {
-        writeByte((int) ((x >>> 56) & 0xff));
-        writeByte((int) ((x >>> 48) & 0xff));
-        writeByte((int) ((x >>> 40) & 0xff));
-        writeByte((int) ((x >>> 32) & 0xff));
-        writeByte((int) ((x >>> 24) & 0xff));
-        writeByte((int) ((x >>> 16) & 0xff));
-        writeByte((int) ((x >>>  8) & 0xff));
-        writeByte((int) ((x >>>  0) & 0xff));
+        out().write(x);
     }
 
     /**
@@ -208,7 +139,7 @@ public final class BinaryStdOut {
      * @param x the {@code float} to write.
      */
     public static void write(float x) {
-        write(Float.floatToRawIntBits(x));
+        out().write(x);
     }
 
     /**
@@ -216,8 +147,7 @@ public final class BinaryStdOut {
      * @param x the {@code short} to write.
      */
     public static void write(short x) {
-        writeByte((x >>>  8) & 0xff);
-        writeByte((x >>>  0) & 0xff);
+        out().write(x);
     }
 
     /**
@@ -226,8 +156,7 @@ public final class BinaryStdOut {
      * @throws IllegalArgumentException if {@code x} is not between 0 and 255.
      */
     public static void write(char x) {
-        if (x < 0 || x >= 256) throw new IllegalArgumentException("Illegal 8-bit char = " + x);
-        writeByte(x);
+        out().write(x);
     }
 
     /**
@@ -238,16 +167,7 @@ public final class BinaryStdOut {
      * @throws IllegalArgumentException if {@code x} is not between 0 and 2<sup>r</sup> - 1.
      */
     public static void write(char x, int r) {
-        if (r == 8) {
-            write(x);
-            return;
-        }
-        if (r < 1 || r > 16) throw new IllegalArgumentException("Illegal value for r = " + r);
-        if (x >= (1 << r))   throw new IllegalArgumentException("Illegal " + r + "-bit char = " + x);
-        for (int i = 0; i < r; i++) {
-            boolean bit = ((x >>> (r - i - 1)) & 1) == 1;
-            writeBit(bit);
-        }
+        out().write(x, r);
     }
 
     /**
@@ -257,8 +177,7 @@ public final class BinaryStdOut {
      * between 0 and 255.
      */
     public static void write(String s) {
-        for (int i = 0; i < s.length(); i++)
-            write(s.charAt(i));
+        out().write(s);
     }
 
     /**
@@ -270,8 +189,7 @@ public final class BinaryStdOut {
      * between 0 and 2<sup>r</sup> - 1.
      */
     public static void write(String s, int r) {
-        for (int i = 0; i < s.length(); i++)
-            write(s.charAt(i), r);
+        out().write(s, r);
     }
 
     /**
@@ -289,4 +207,4 @@ public final class BinaryStdOut {
         BinaryStdOut.flush();
     }
 
-}
\ No newline at end of file
+}
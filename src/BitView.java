@@ -0,0 +1,127 @@
+/******************************************************************************
+ *  Compilation:  javac BitView.java
+ *  Execution:    java BitView get compressed.bin 1000
+ *  Execution:    java BitView next compressed.bin 1000    (next set bit)
+ *  Execution:    java BitView clear compressed.bin 1000   (next clear bit)
+ *  Dependencies: BinaryIn.java RunIterator.java
+ *
+ *  Reads single bits of a compressed bitmap, decoding only the runs up to
+ *  the bits asked for.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ *  The {@code BitView} class is a read-only view of the bits of a bitmap
+ *  compressed in the original {@link BitmapCompressor} format, or in the
+ *  appendable or image formats. It holds one run of a {@link RunIterator} and
+ *  answers {@link #get(long)}, {@link #nextSetBit(long)} and
+ *  {@link #nextClearBit(long)} from it, moving on to later runs only when a
+ *  query reaches past it; nothing beyond the last run asked about is ever
+ *  decoded, and a scan that stops early never pays for the rest of the
+ *  stream.
+ *  <p>
+ *  The view is forward-only, as the stream is: it only ever moves to the
+ *  run holding the largest offset asked about, so offsets that never
+ *  decrease are always answered, and an offset behind that run is an error. Random access to
+ *  large bitmaps goes through {@link SeekIndex} instead. As for
+ *  {@link java.util.BitSet}, bits past the end of the bitmap read as 0.
+ *
+ *  @author Kieran Pichai
+ */
+public final class BitView {
+    private final RunIterator runs;
+    private boolean black;          // colour of the current run
+    private long start;             // offset of the current run
+    private long end;               // offset just past the current run; start == end before the first run
+
+    /**
+     * Creates a view of a compressed bitmap, reading only its header.
+     *
+     * @param in the compressed bitmap, from its first bit
+     * @throws IllegalArgumentException if the stream is not in the original,
+     *         appendable or image format
+     */
+    public BitView(BinaryIn in) {
+        this.runs = new RunIterator(in);
+    }
+
+    /**
+     * Returns the bit at the given offset.
+     *
+     * @param i the offset of the bit
+     * @return true if the bit is 1, false if it is 0 or past the end of the bitmap
+     * @throws IllegalArgumentException if {@code i} is negative or before the current run
+     */
+    public boolean get(long i) {
+        return seek(i) && black;
+    }
+
+    /**
+     * Returns the offset of the first 1 at or after {@code from}.
+     *
+     * @param from the offset to start looking at
+     * @return the offset of the next set bit, or -1 if there is none
+     * @throws IllegalArgumentException if {@code from} is negative or before the current run
+     */
+    public long nextSetBit(long from) {
+        if (!seek(from)) return -1;
+        if (black) return from;
+        // Runs alternate, so the run after a run of 0s is 1s; the view stays where it is
+        return runs.hasNext() ? end : -1;
+    }
+
+    /**
+     * Returns the offset of the first 0 at or after {@code from}. Since bits
+     * past the end of the bitmap are 0, there is always one.
+     *
+     * @param from the offset to start looking at
+     * @return the offset of the next clear bit
+     * @throws IllegalArgumentException if {@code from} is negative or before the current run
+     */
+    public long nextClearBit(long from) {
+        if (!seek(from) || !black) return from;
+        // The run of 1s ends where the next run of 0s starts, or where the bitmap does
+        return end;
+    }
+
+    // Moves to the run holding bit i, returning false if i is past the end of the bitmap
+    private boolean seek(long i) {
+        if (i < 0 || i < start) throw new IllegalArgumentException("Illegal offset = " + i + ", before " + start);
+        while (i >= end) {
+            if (!advance()) return false;
+        }
+        return true;
+    }
+
+    // Moves to the next run, returning false at the end of the bitmap, where the last run stays current
+    private boolean advance() {
+        if (!runs.next()) return false;
+        black = runs.isBlack();
+        start = runs.start();
+        end = start + runs.length();
+        return true;
+    }
+
+    /**
+     * Answers one query on a compressed file: "get", "next" (set bit) or
+     * "clear" (next clear bit), then the file and the offset.
+     *
+     * @param args the command-line arguments
+     * @throws IOException if the file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        long i = Long.parseLong(args[2]);
+        try (InputStream is = Files.newInputStream(Paths.get(args[1]))) {
+            BitView view = new BitView(new BinaryIn(is));
+            if      (args[0].equals("get"))   System.out.println(view.get(i) ? 1 : 0);
+            else if (args[0].equals("next"))  System.out.println(view.nextSetBit(i));
+            else if (args[0].equals("clear")) System.out.println(view.nextClearBit(i));
+            else throw new IllegalArgumentException("Illegal command line argument");
+        }
+    }
+}
@@ -1,8 +1,22 @@
 /******************************************************************************
  *  Compilation:  javac BitmapCompressor.java
- *  Execution:    java BitmapCompressor - < input.bin   (compress)
+ *  Execution:    java BitmapCompressor - 8 < input.bin   (compress, 8-bit codes)
+ *  Execution:    java BitmapCompressor - 8 framed < input.bin   (compress in blocks)
+ *  Execution:    java BitmapCompressor - auto < input.bin   (compress, best code width)
+ *  Execution:    java BitmapCompressor - gamma < input.bin  (compress, Elias-gamma codes)
+ *  Execution:    java BitmapCompressor - rice < input.bin   (compress, best Golomb-Rice code)
+ *  Execution:    java BitmapCompressor - huffman < input.bin   (compress, fitted Huffman codes)
+ *  Execution:    java BitmapCompressor - fax < input.bin    (compress, built-in Huffman codes)
+ *  Execution:    java BitmapCompressor - 8 parallel < input.bin   (compress chunks on every core)
+ *  Execution:    java BitmapCompressor - 2d 32 < q32x48.bin   (compress rows against the row above)
  *  Execution:    java BitmapCompressor + < input.bin   (expand)
- *  Dependencies: BinaryIn.java BinaryOut.java
+ *  Execution:    java BitmapCompressor - 8 input.bin output.bin   (compress mapped files)
+ *  Execution:    java BitmapCompressor + input.bin output.bin     (expand mapped files)
+ *  Dependencies: BinaryIn.java BinaryOut.java RunScanner.java RunList.java
+ *                RunHistogram.java RunCodec.java HuffmanCodec.java FramedCompressor.java
+ *                RowReferenceCompressor.java ParallelCompressor.java MappedFile.java
+ *                CompressionMetrics.java AppendableCompressor.java TiledCompressor.java
+ *                ImageCompressor.java BufferCompressor.java
  *  Data files:   q32x48.bin
  *                q64x96.bin
  *                mystery.bin
@@ -16,7 +30,10 @@
  *  1240 bits
  ******************************************************************************/
 
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  *  The {@code BitmapCompressor} class provides static methods for compressing
@@ -28,83 +45,471 @@ import java.util.ArrayList;
  *  @author Kieran Pichai
  */
 public class BitmapCompressor {
+    // Reader, writer and scanner for the ByteBuffer methods, made once per thread
+    private static final ThreadLocal<BufferCompressor> BUFFERS = ThreadLocal.withInitial(BufferCompressor::new);
+
     /**
      * Reads a sequence of bits from standard input, compresses them,
      * and writes the results to standard output.
      */
-    // Compress algorithm that reads a file in and writes out a compressed version
     public static void compress(int maxBitsCompressing) {
-        // Takes in a specified number of bits for codes (user chosen) and calculates the max repeats it can store
-        int maxLength = (int)Math.pow(2, maxBitsCompressing) - 1;
-        ArrayList<Integer> runLengths = new ArrayList<Integer>();
-        boolean previousBit = false;
-        boolean currBit;
-        int count = 0;
-        // While loop reads in data bit by bit
-        while (!BinaryStdIn.isEmpty()) {
-            currBit = BinaryStdIn.readBoolean();
-            // Checks if you have a match with your previous bit
-            if (currBit == previousBit) {
-                count++;
-                // Resets and appends count to arraylist in case you exceed max repeats storable in one code
-                if (count > maxLength) {
-                    runLengths.add(maxLength);
-                    runLengths.add(0);
-                    count = 1;
-                }
-            } else {
-                // Lose count so adds current count to arraylist
-                runLengths.add(count);
-                count = 1;
-                previousBit = !previousBit;
-            }
+        BinaryOut out = new BinaryOut(System.out);
+        compress(new BinaryIn(System.in), out, maxBitsCompressing);
+        out.close();
+    }
+
+    /**
+     * Reads a sequence of bits from {@code in}, compresses them,
+     * and writes the results to {@code out}. The output is flushed
+     * but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @param maxBitsCompressing the number of bits in each run-length code
+     */
+    public static void compress(BinaryIn in, BinaryOut out, int maxBitsCompressing) {
+        compress(in, out, RunCodec.fixed(maxBitsCompressing));
+    }
+
+    /**
+     * Reads a sequence of bits from {@code in}, compresses them with the
+     * given codec, and writes the results to {@code out}. The output is
+     * flushed but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @param codec the code to write run lengths with
+     */
+    public static void compress(BinaryIn in, BinaryOut out, RunCodec codec) {
+        CompressionMetrics.Job job = CompressionMetrics.begin();
+        RunList runs = scan(in, null);
+        if (job != null) job.read();
+        writeRuns(out, runs, codec, job);
+    }
+
+    /**
+     * Compresses a file into another with the given codec, reading the input
+     * through memory mappings so its words are scanned in place, and writing
+     * the output to a file mapped at its final size, which the runs give in
+     * advance.
+     *
+     * @param input the bitmap to compress
+     * @param output where to write the compressed bitmap; replaced if it exists
+     * @param codec the code to write run lengths with
+     */
+    public static void compress(Path input, Path output, RunCodec codec) {
+        CompressionMetrics.Job job = CompressionMetrics.begin();
+        RunList runs = scanMapped(input);
+        if (job != null) job.read();
+        writeMapped(output, runs, codec, job);
+    }
+
+    /**
+     * Compresses a file into another through memory mappings, as
+     * {@link #compress(Path, Path, RunCodec)} does, with the codec named as
+     * on the command line, including those fitted to the runs ("auto",
+     * "rice", "huffman"), which are chosen once the whole input is scanned.
+     *
+     * @param input the bitmap to compress
+     * @param output where to write the compressed bitmap; replaced if it exists
+     * @param mode the name of the codec
+     * @throws IllegalArgumentException if {@code mode} names no such codec
+     */
+    public static void compress(Path input, Path output, String mode) {
+        CompressionMetrics.Job job = CompressionMetrics.begin();
+        RunList runs = scanMapped(input);
+        if (job != null) job.read();
+        writeMapped(output, runs, codec(mode, runs), job);
+    }
+
+    // Reads a file through memory mappings into a list of runs
+    private static RunList scanMapped(Path input) {
+        RunList runs = new RunList();
+        RunScanner scanner = new RunScanner(runs);
+        MappedFile.scan(input, scanner);
+        scanner.finish();
+        return runs;
+    }
+
+    // Writes the runs to a file mapped at the size they take with the codec
+    private static void writeMapped(Path output, RunList runs, RunCodec codec, CompressionMetrics.Job job) {
+        // Header, count and codes; the header is only a guess for Huffman tables, which just maps one more window
+        long bits = 8 + 32;
+        for (int i = 0; i < runs.size(); i++) {
+            bits += codec.runBits(runs.get(i), (i & 1) == 1);
         }
-        // Writes out number of bits for code, total num of codes, then each code
-        BinaryStdOut.write(maxBitsCompressing, 8);
-        BinaryStdOut.write(runLengths.size()+1);
-        for (int cur : runLengths) {
-            BinaryStdOut.write(cur, maxBitsCompressing);
+        BinaryOut out = new BinaryOut(MappedFile.output(output, (bits + 7) / 8));
+        writeRuns(out, runs, codec, job);
+        out.close();
+    }
+
+    /**
+     * Compresses the first {@code bits} bits of {@code src}, from its
+     * position, into {@code dst} from its position, in the original format.
+     * Both buffers are read and written in place, heap or direct, through
+     * this thread's {@link BufferCompressor}, so nothing is allocated on the
+     * heap after a thread's first call: the bits are scanned twice, once to
+     * count the codes that go before them and once to write them.
+     * The position of {@code src} moves past the bits read and that of
+     * {@code dst} past the bytes written.
+     *
+     * @param src the bitmap to compress
+     * @param bits the number of bits in the bitmap
+     * @param dst where to write the compressed bitmap
+     * @param codec the code to write run lengths with
+     * @return the number of bytes written
+     * @throws IllegalArgumentException unless {@code 0 <= bits <= 8 * src.remaining()}
+     * @throws java.nio.BufferOverflowException if {@code dst} runs out of room,
+     *         which {@link #maxCompressedSize(long, RunCodec)} bytes never do
+     */
+    public static int compress(ByteBuffer src, long bits, ByteBuffer dst, RunCodec codec) {
+        return BUFFERS.get().compress(src, bits, dst, codec);
+    }
+
+    /**
+     * Returns the most bytes {@link #compress(ByteBuffer, long, ByteBuffer, RunCodec)}
+     * can write for a bitmap of the given size, whatever its bits, for sizing
+     * the destination buffer. The worst case is the run length that costs
+     * the most code bits per bit of the bitmap, usually runs of a single bit,
+     * so with 8-bit codes it is about 8 times the size of the bitmap.
+     *
+     * @param bits the number of bits in the bitmap
+     * @param codec the code to write run lengths with
+     * @return the largest possible size of the compressed bitmap in bytes
+     * @throws IllegalArgumentException if {@code bits} is negative
+     */
+    public static long maxCompressedSize(long bits, RunCodec codec) {
+        if (bits < 0) throw new IllegalArgumentException("Illegal number of bits = " + bits);
+        BinaryOut header = new BinaryOut(OutputStream.nullOutputStream(), new byte[8]);
+        codec.writeHeader(header);
+        int maxLength = codec.maxLength();
+        // Most code bits per bit for a run that fits in one code; no code is longer than 64 bits,
+        // so runs over 64 bits cost less than 1 bit per bit and the 1-bit run already bounds them
+        double perBit = 0;
+        for (int length = 1; length <= Math.min(maxLength, 64); length++) {
+            perBit = Math.max(perBit, (double) codec.codeBits(length, false) / length);
+            perBit = Math.max(perBit, (double) codec.codeBits(length, true) / length);
         }
-        // Writes out final code
-        BinaryStdOut.write(count, maxBitsCompressing);
-        BinaryStdOut.close();
+        // Longer runs cost their maxLength, 0 pairs and a rest of 1 to maxLength bits
+        perBit = Math.max(perBit, (double) (codec.codeBits(maxLength, false) + codec.codeBits(0, true)) / maxLength);
+        perBit = Math.max(perBit, (double) (codec.codeBits(maxLength, true) + codec.codeBits(0, false)) / maxLength);
+        // The first run of 0s is the only one that can be empty; one more bit covers rounding
+        long total = header.position() + 32 + codec.codeBits(0, false) + (long) Math.ceil(bits * perBit) + 1;
+        return (total + 7) / 8;
+    }
+
+    /**
+     * Reads a sequence of bits from {@code in} and compresses them with
+     * whichever code width gives the smallest output, found from a histogram
+     * of the run lengths. The input is read only once and the chosen width
+     * is written in the usual 8-bit width header, so {@code expand()} needs
+     * no changes. The output is flushed but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @return the code width that was used
+     */
+    public static int compressAuto(BinaryIn in, BinaryOut out) {
+        CompressionMetrics.Job job = CompressionMetrics.begin();
+        RunHistogram histogram = new RunHistogram();
+        RunList runs = scan(in, histogram);
+        if (job != null) job.read();
+        // Exact size of every width is known from the histogram, so just pick the smallest
+        int maxBitsCompressing = histogram.bestWidth();
+        writeRuns(out, runs, RunCodec.fixed(maxBitsCompressing), job);
+        return maxBitsCompressing;
+    }
+
+    /**
+     * Reads a sequence of bits from {@code in} and compresses them with
+     * the exponential Golomb-Rice code whose parameter gives the smallest
+     * output. The output is flushed but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @return the codec that was used
+     */
+    public static RunCodec compressRice(BinaryIn in, BinaryOut out) {
+        CompressionMetrics.Job job = CompressionMetrics.begin();
+        RunHistogram histogram = new RunHistogram();
+        RunList runs = scan(in, histogram);
+        if (job != null) job.read();
+        RunCodec codec = histogram.bestGolomb();
+        writeRuns(out, runs, codec, job);
+        return codec;
+    }
+
+    /**
+     * Reads a sequence of bits from {@code in} and compresses them with
+     * Huffman codes fitted to the white and black runs of the bitmap.
+     * The output is flushed but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     */
+    public static void compressHuffman(BinaryIn in, BinaryOut out) {
+        CompressionMetrics.Job job = CompressionMetrics.begin();
+        RunList runs = scan(in, null);
+        if (job != null) job.read();
+        writeRuns(out, runs, HuffmanCodec.fit(runs), job);
+    }
+
+    // Reads the input into a list of runs, counting them in histogram as well unless it is null
+    private static RunList scan(BinaryIn in, RunHistogram histogram) {
+        RunList runs = new RunList();
+        RunScanner scanner = new RunScanner(histogram == null ? runs : length -> {
+            runs.run(length);
+            histogram.run(length);
+        });
+        // Reads the input a 64-bit word at a time so long runs are measured without looking at each bit
+        scanner.scan(in);
+        // Final run is always written, even if the input was empty
+        scanner.finish();
+        return runs;
+    }
+
+    /**
+     * Writes a list of runs in the original format: the codec header, the
+     * total number of codes, then each code. The runs must alternate colours
+     * starting with 0s, as {@link RunScanner} reports them. The output is
+     * flushed but not closed.
+     *
+     * @param out where to write the compressed bitmap
+     * @param runs the runs of the bitmap
+     * @param codec the code to write run lengths with
+     */
+    public static void writeRuns(BinaryOut out, RunList runs, RunCodec codec) {
+        writeRuns(out, runs, codec, null);
+    }
+
+    // Writes the runs, reporting to job unless it is null
+    private static void writeRuns(BinaryOut out, RunList runs, RunCodec codec, CompressionMetrics.Job job) {
+        long start = out.position();
+        long numCodes = 0;
+        for (int i = 0; i < runs.size(); i++) {
+            numCodes += codec.codes(runs.get(i));
+        }
+        codec.writeHeader(out);
+        out.write((int) numCodes);
+        for (int i = 0; i < runs.size(); i++) {
+            // Runs alternate colours, starting with 0s
+            codec.writeRun(out, runs.get(i), (i & 1) == 1);
+        }
+        if (job != null) job.encoded();
+        out.flush();
+        if (job != null) job.end(runs, numCodes, out.position() - start);
     }
 
     /**
      * Reads a sequence of bits from standard input, decodes it,
      * and writes the results to standard output.
      */
-    // Expand function that reads in a compressed file and losslessly expands it
     public static void expand() {
-        // Reads in both num bits allocated to a code and total num of repeats
-        int max = BinaryStdIn.readInt(8);
-        int numRepeatCodes = BinaryStdIn.readInt();
-        int curByte;
+        BinaryOut out = new BinaryOut(System.out);
+        expand(new BinaryIn(System.in), out);
+        out.close();
+    }
+
+    /**
+     * Reads a sequence of bits from {@code in}, decodes it,
+     * and writes the results to {@code out}. The output is flushed
+     * but neither stream is closed.
+     *
+     * @param in the compressed bitmap
+     * @param out where to write the expanded bitmap
+     */
+    public static void expand(BinaryIn in, BinaryOut out) {
+        decode(in, out);
+        out.flush();
+    }
+
+    /**
+     * Expands a compressed bitmap in any format from {@code src}, from its
+     * position, into {@code dst} from its position. Both buffers are read and
+     * written in place, heap or direct, through this thread's
+     * {@link BufferCompressor}. The position of {@code src} moves past
+     * the compressed bitmap and that of {@code dst} past the bytes written.
+     *
+     * @param src the compressed bitmap
+     * @param dst where to write the expanded bitmap
+     * @return the number of bits written, before the last byte is padded with 0s
+     * @throws java.nio.BufferOverflowException if {@code dst} runs out of room
+     */
+    public static long expand(ByteBuffer src, ByteBuffer dst) {
+        return BUFFERS.get().expand(src, dst);
+    }
+
+    // Expand function that reads in a compressed file and losslessly expands it, leaving the output unflushed
+    static void decode(BinaryIn in, BinaryOut out) {
+        // Reads in the codec (the num bits allocated to a code in the original format) and total num of repeats
+        int id = in.readInt(8);
+        // Block-framed streams share the first byte with the codec
+        if (id == FramedCompressor.TAG) {
+            FramedCompressor.expandBlocks(in, out);
+            return;
+        }
+        if (id == ParallelCompressor.TAG) {
+            ParallelCompressor.expandBlocks(in, out);
+            return;
+        }
+        if (id == RowReferenceCompressor.TAG) {
+            RowReferenceCompressor.expandRows(in, out);
+            return;
+        }
+        if (id == AppendableCompressor.TAG) {
+            AppendableCompressor.expandStream(in, out);
+            return;
+        }
+        if (id == TiledCompressor.TAG) {
+            TiledCompressor.expandTiles(in, out);
+            return;
+        }
+        if (id == ImageCompressor.TAG) {
+            ImageCompressor.expandStream(in, out);
+            return;
+        }
+        decodeRuns(id, in, out);
+    }
+
+    // Decodes a stream that must be in the original format, as the blocks of other formats are, leaving the output unflushed
+    static void decodeOriginal(BinaryIn in, BinaryOut out) {
+        int id = in.readInt(8);
+        // Every other format's tag is 0x80 or above; nesting one inside a block could recurse without bound
+        if (id >= FramedCompressor.TAG) throw new IllegalArgumentException("Expected a stream in the original format, not tag " + id);
+        decodeRuns(id, in, out);
+    }
+
+    // Decodes a stream in the original format whose codec id has already been read, leaving the output unflushed
+    static void decodeRuns(int id, BinaryIn in, BinaryOut out) {
+        RunCodec codec = RunCodec.readHeader(id, in);
+        int numRepeatCodes = in.readInt();
         boolean previousBit = false;
-        // Loops through num of repeats and reads in max at a time
+        // Loops through num of repeats and reads in one code at a time
         for (int i = 0; i < numRepeatCodes; i++) {
-            curByte = BinaryStdIn.readInt(max);
-            for (int j = 0; j < curByte; j++) {
-                BinaryStdOut.write(previousBit);
-            }
+            // Writes the whole run at once, filling aligned bytes directly
+            out.writeRepeated(previousBit, codec.readCode(in, previousBit));
             // Flips bit to ensure we have alternating expansion pattern
             previousBit = !previousBit;
         }
-        BinaryStdOut.close();
+    }
+
+    /**
+     * Expands a compressed file into another, reading and writing both
+     * through memory mappings.
+     *
+     * @param input the compressed bitmap
+     * @param output where to write the expanded bitmap; replaced if it exists
+     */
+    public static void expand(Path input, Path output) {
+        BinaryIn in = new BinaryIn(MappedFile.input(input));
+        BinaryOut out = new BinaryOut(MappedFile.output(output, 0));
+        expand(in, out);
+        out.close();
+        in.close();
+    }
+
+    /**
+     * Reads a sequence of bits from {@code in}, compresses them in the
+     * original format with the codec named as on the command line, and
+     * writes the results to {@code out}: a code width, "auto", "gamma",
+     * "rice", "huffman" or "fax". The output is flushed but neither stream
+     * is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @param mode the name of the codec
+     * @throws IllegalArgumentException if {@code mode} names no codec
+     */
+    public static void compress(BinaryIn in, BinaryOut out, String mode) {
+        if      (mode.equals("auto"))    compressAuto(in, out);
+        else if (mode.equals("rice"))    compressRice(in, out);
+        else if (mode.equals("huffman")) compressHuffman(in, out);
+        else                             compress(in, out, codec(mode));
+    }
+
+    /**
+     * Returns the codec named as on the command line: a code width, "gamma"
+     * for Elias-gamma codes or "fax" for the built-in Huffman tables. Codecs
+     * fitted to the runs ("auto", "rice", "huffman") aren't known until the
+     * runs are, so they have no {@code RunCodec} here.
+     *
+     * @param name the name of the codec
+     * @return the codec
+     * @throws IllegalArgumentException if {@code name} names no such codec,
+     *         or one fitted to the runs
+     */
+    public static RunCodec codec(String name) {
+        if (name.equals("gamma")) return RunCodec.golomb(0);
+        if (name.equals("fax"))   return HuffmanCodec.fax();
+        if (isFitted(name)) throw new IllegalArgumentException(name + " is fitted to the runs, so it can't be used here; use a code width, gamma or fax");
+        try {
+            return RunCodec.fixed(Integer.parseInt(name));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown codec " + name + "; use a code width from 1 to 32, gamma or fax", e);
+        }
+    }
+
+    // Is the codec chosen from the runs, so that every run is needed before the first code is written?
+    private static boolean isFitted(String name) {
+        return name.equals("auto") || name.equals("rice") || name.equals("huffman");
+    }
+
+    // The codec named as on the command line, fitted to the runs for "auto", "rice" and "huffman" as compress() fits them
+    private static RunCodec codec(String mode, RunList runs) {
+        if (mode.equals("huffman")) return HuffmanCodec.fit(runs);
+        if (!mode.equals("auto") && !mode.equals("rice")) return codec(mode);
+        RunHistogram histogram = new RunHistogram();
+        for (int i = 0; i < runs.size(); i++) histogram.run(runs.get(i));
+        return mode.equals("auto") ? RunCodec.fixed(histogram.bestWidth()) : histogram.bestGolomb();
     }
 
     /**
      * When executed at the command-line, run {@code compress()} if the command-line
-     * argument is "-" and {@code expand()} if it is "+".
+     * argument is "-" and {@code expand()} if it is "+". The second argument
+     * to "-" is the code width, "auto" for the best code width, "gamma" for
+     * Elias-gamma codes, "rice" for the best exponential Golomb-Rice code,
+     * "huffman" for Huffman codes fitted to the runs or "fax" for the
+     * built-in Huffman tables, or "2d" followed by the row width (and
+     * optionally a code width, "gamma" or "fax") to code each row against the one above;
+     * a third argument of "framed" writes the block-framed format and
+     * "parallel" the block-parallel format. With any of the codecs above,
+     * "-" may instead be followed by an input and an output file, as may
+     * "+", to read and write them through memory mappings.
      *
      * @param args the command-line arguments
      */
     public static void main(String[] args) {
-        if (args[0].equals("-")) {
+        // Input and output files instead of standard input and output are read and written through mappings
+        if (args[0].equals("-") && args.length == 4 && !args[1].equals("2d")) {
+            compress(Paths.get(args[2]), Paths.get(args[3]), args[1]);
+        }
+        else if (args[0].equals("+") && args.length == 3) expand(Paths.get(args[1]), Paths.get(args[2]));
+        else if (args[0].equals("-")) {
+            BinaryIn in = new BinaryIn(System.in);
+            BinaryOut out = new BinaryOut(System.out);
+            if (args[1].equals("2d")) {
+                // Codes each row against the one above, given the row width and optionally the codec for runs
+                int width = Integer.parseInt(args[2]);
+                if (args.length > 3 && isFitted(args[3])) throw new IllegalArgumentException("2d needs a code width, gamma or fax");
+                RunCodec codec = args.length > 3 ? codec(args[3]) : HuffmanCodec.fax();
+                RowReferenceCompressor.compress(in, out, width, codec);
+                out.close();
+                return;
+            }
+            boolean framed = args.length > 2 && args[2].equals("framed");
+            boolean parallel = args.length > 2 && args[2].equals("parallel");
+            // Codecs chosen from the run histogram need every run before the first code is written
+            if ((framed || parallel) && isFitted(args[1])) throw new IllegalArgumentException(args[2] + " needs a code width, gamma or fax");
+            // Streams fixed-size blocks so memory use doesn't grow with the input
+            if (framed) FramedCompressor.compress(in, out, codec(args[1]));
+            // Compresses independent chunks on every core
+            else if (parallel) ParallelCompressor.compress(System.in, out, codec(args[1]));
             // Reads in code length for codes indicated in the terminal, allows to explore different compression ratios
-            compress(Integer.parseInt(args[1]));
+            else compress(in, out, args[1]);
+            out.close();
         }
         else if (args[0].equals("+")) expand();
         else throw new IllegalArgumentException("Illegal command line argument");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+/******************************************************************************
+ *  Compilation:  javac BufferCompressor.java
+ *  Execution:    none (library class)
+ *  Dependencies: BinaryIn.java BinaryOut.java RunScanner.java RunCodec.java BitmapCompressor.java
+ *
+ *  Compresses and expands bitmaps held in byte buffers, reusing the same
+ *  readers, writers and scanner for every call.
+ *
+ ******************************************************************************/
+
+import java.nio.ByteBuffer;
+
+/**
+ *  The {@code BufferCompressor} class compresses bitmaps from one
+ *  {@code ByteBuffer} into another in the original {@link BitmapCompressor}
+ *  format, and expands them again, in place, heap or direct. Each instance
+ *  makes its {@link BinaryIn}, {@link BinaryOut} and {@link RunScanner} once
+ *  and points them at the buffers of each call, so once it is made,
+ *  compressing or expanding a bitmap in the original format allocates
+ *  nothing on the heap. Streams in the other formats are expanded too, but
+ *  their decoders allocate as they always do.
+ *  <p>
+ *  An instance keeps state between the steps of a call, so it must be used
+ *  by one thread at a time; the static {@code ByteBuffer} methods of
+ *  {@link BitmapCompressor} keep one per thread.
+ *
+ *  @author Kieran Pichai
+ */
+public final class BufferCompressor {
+    private final BinaryIn in = new BinaryIn(ByteBuffer.allocate(0));
+    private final BinaryOut out = new BinaryOut(ByteBuffer.allocate(0));
+    private final RunCoder coder = new RunCoder();
+    private final RunScanner scanner = new RunScanner(coder);
+
+    /**
+     * Compresses the first {@code bits} bits of {@code src}, from its
+     * position, into {@code dst} from its position, in the original format.
+     * The bits are scanned twice, once to count the codes that go before
+     * them and once to write them. The position of {@code src} moves past
+     * the bits read and that of {@code dst} past the bytes written.
+     *
+     * @param src the bitmap to compress
+     * @param bits the number of bits in the bitmap
+     * @param dst where to write the compressed bitmap
+     * @param codec the code to write run lengths with
+     * @return the number of bytes written
+     * @throws IllegalArgumentException unless {@code 0 <= bits <= 8 * src.remaining()}
+     * @throws java.nio.BufferOverflowException if {@code dst} runs out of room,
+     *         which {@link BitmapCompressor#maxCompressedSize(long, RunCodec)} bytes never do
+     */
+    public int compress(ByteBuffer src, long bits, ByteBuffer dst, RunCodec codec) {
+        int start = src.position();
+        coder.reset(codec, null);
+        scanner.scan(src, bits);
+        scanner.finish();
+        long codes = coder.codes;
+
+        src.position(start);
+        int dstStart = dst.position();
+        out.reset(dst);
+        codec.writeHeader(out);
+        out.write((int) codes);
+        coder.reset(codec, out);
+        scanner.scan(src, bits);
+        scanner.finish();
+        out.flush();
+        return dst.position() - dstStart;
+    }
+
+    /**
+     * Expands a compressed bitmap in any format from {@code src}, from its
+     * position, into {@code dst} from its position. The position of
+     * {@code src} moves past the compressed bitmap and that of {@code dst}
+     * past the bytes written.
+     *
+     * @param src the compressed bitmap
+     * @param dst where to write the expanded bitmap
+     * @return the number of bits written, before the last byte is padded with 0s
+     * @throws java.nio.BufferOverflowException if {@code dst} runs out of room
+     */
+    public long expand(ByteBuffer src, ByteBuffer dst) {
+        int start = src.position();
+        in.reset(src);
+        out.reset(dst);
+        BitmapCompressor.decode(in, out);
+        long bits = out.position();
+        out.flush();
+        // The reader takes whole words from the buffer, so its position may be past the end of the stream
+        src.position(start + (int) ((in.position() + 7) >>> 3));
+        return bits;
+    }
+
+    // Counts the codes of each run, or writes them if out isn't null; runs alternate colours starting with 0s
+    private static final class RunCoder implements RunScanner.Sink {
+        private RunCodec codec;
+        private BinaryOut out;
+        private boolean black;
+        private long codes;
+
+        void reset(RunCodec codec, BinaryOut out) {
+            this.codec = codec;
+            this.out = out;
+            black = false;
+            codes = 0;
+        }
+
+        @Override
+        public void run(long length) {
+            if (out == null) codes += codec.codes(length);
+            else             codec.writeRun(out, length, black);
+            black = !black;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/******************************************************************************
+ *  Compilation:  javac CompressionEvent.java
+ *  Execution:    java -XX:StartFlightRecording BitmapCompressor - 8 < input.bin
+ *  Dependencies: none
+ *
+ *  A JDK Flight Recorder event for one compression job.
+ *
+ ******************************************************************************/
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ *  The {@code CompressionEvent} class is recorded by Flight Recorder once
+ *  per compression job, spanning the whole job, whenever a recording with
+ *  the {@code bitmapcompressor.Compression} event enabled is running.
+ *  Without a recording, {@link #isEnabled()} is false and nothing is
+ *  measured.
+ *
+ *  @author Kieran Pichai
+ */
+@Name("bitmapcompressor.Compression")
+@Label("Bitmap Compression")
+@Category("Bitmap Compressor")
+@Description("One bitmap compressed into run-length codes")
+public class CompressionEvent extends Event {
+    @Label("Input Size")
+    @DataAmount(DataAmount.BITS)
+    long inputBits;
+
+    @Label("Output Size")
+    @DataAmount(DataAmount.BITS)
+    long outputBits;
+
+    @Label("Runs")
+    long runs;
+
+    @Label("Escape Pairs")
+    @Description("maxLength, 0 pairs written for runs longer than one code")
+    long escapes;
+
+    @Label("Median Run Length")
+    long runLengthP50;
+
+    @Label("90th Percentile Run Length")
+    long runLengthP90;
+
+    @Label("99th Percentile Run Length")
+    long runLengthP99;
+
+    @Label("Longest Run")
+    long runLengthMax;
+
+    @Label("Read Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long readNanos;
+
+    @Label("Encode Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long encodeNanos;
+
+    @Label("Write Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long writeNanos;
+
+    @Label("Throughput")
+    @DataAmount(DataAmount.BYTES)
+    @Frequency
+    @Description("Bytes of bitmap compressed per second")
+    double bytesPerSecond;
+}
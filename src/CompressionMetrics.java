@@ -0,0 +1,260 @@
+/******************************************************************************
+ *  Compilation:  javac CompressionMetrics.java
+ *  Execution:    java -Dbitmapcompressor.metrics=true BitmapCompressor - 8 < input.bin
+ *  Dependencies: CompressionMetricsMXBean.java CompressionEvent.java RunHistogram.java RunList.java
+ *
+ *  Counters for compression jobs, published as a JMX MBean and as Flight
+ *  Recorder events.
+ *
+ ******************************************************************************/
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+
+/**
+ *  The {@code CompressionMetrics} class collects what each compression job
+ *  would otherwise throw away: input and output size, the number of runs
+ *  and of {@code maxLength, 0} escape pairs, run-length percentiles, and
+ *  the time spent reading, encoding and writing.
+ *  <p>
+ *  Jobs are measured when the {@code bitmapcompressor.metrics} system
+ *  property is {@code true}, which also registers the totals as the MBean
+ *  {@code bitmapcompressor:type=CompressionMetrics}, or while a Flight
+ *  Recorder recording has {@link CompressionEvent} enabled. Otherwise
+ *  {@link #begin()} returns {@code null} after one check and the compressor
+ *  skips every measurement, so the cost is a single branch per job; the
+ *  event class isn't even loaded until Flight Recorder is running.
+ *  <p>
+ *  Totals are kept in {@link LongAdder}s, so jobs on many threads can
+ *  finish at once.
+ *
+ *  @author Kieran Pichai
+ */
+public final class CompressionMetrics implements CompressionMetricsMXBean {
+    /**
+     * Whether the {@code bitmapcompressor.metrics} system property turned metrics on.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("bitmapcompressor.metrics");
+
+    /**
+     * Name the MBean is registered under.
+     */
+    public static final String OBJECT_NAME = "bitmapcompressor:type=CompressionMetrics";
+
+    private static final CompressionMetrics INSTANCE = new CompressionMetrics();
+
+    // Histogram each thread's jobs are measured with, cleared rather than made again for every job
+    private static final ThreadLocal<RunHistogram> HISTOGRAMS = ThreadLocal.withInitial(RunHistogram::new);
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            }
+            catch (JMException e) {
+                throw new IllegalStateException("Could not register " + OBJECT_NAME, e);
+            }
+        }
+    }
+
+    private final LongAdder jobs = new LongAdder();
+    private final LongAdder inputBits = new LongAdder();
+    private final LongAdder outputBits = new LongAdder();
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder escapes = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private volatile long[] lastPercentiles = new long[4];     // p50, p90, p99, max of the last job
+
+    // Loading CompressionEvent is slow, so it waits until Flight Recorder is running; isEnabled() then
+    // follows recordings as they start and stop, without making an event
+    private static final class Recording {
+        static final EventType EVENT_TYPE = EventType.getEventType(CompressionEvent.class);
+    }
+
+    private CompressionMetrics() { }
+
+    /**
+     * Returns the totals of every job measured in this JVM.
+     * @return the metrics
+     */
+    public static CompressionMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts measuring a compression job, if metrics are on.
+     * @return the job to report to, or {@code null} if nothing is being measured
+     */
+    public static Job begin() {
+        if (!ENABLED && !(FlightRecorder.isInitialized() && Recording.EVENT_TYPE.isEnabled())) return null;
+        CompressionEvent event = new CompressionEvent();
+        event.begin();
+        return new Job(event);
+    }
+
+    /**
+     * One compression job being measured. The compressor calls
+     * {@link #read()}, {@link #encoded()} and
+     * {@link #end(RunList, long, long)} in that order.
+     */
+    public static final class Job {
+        private final CompressionEvent event;
+        private final long start = System.nanoTime();
+        private long readEnd;
+        private long encodeEnd;
+
+        private Job(CompressionEvent event) {
+            this.event = event;
+        }
+
+        /**
+         * Marks the end of reading the input and finding its runs.
+         */
+        public void read() {
+            readEnd = System.nanoTime();
+        }
+
+        /**
+         * Marks the end of encoding, before the output is flushed.
+         */
+        public void encoded() {
+            encodeEnd = System.nanoTime();
+        }
+
+        /**
+         * Marks the end of the job once the output is flushed, and publishes it.
+         * @param runList the runs of the bitmap
+         * @param codes the number of codes written, counting escape pairs
+         * @param outputBits the size of the output in bits
+         */
+        public void end(RunList runList, long codes, long outputBits) {
+            long end = System.nanoTime();
+            RunHistogram histogram = HISTOGRAMS.get();
+            histogram.clear();
+            for (int i = 0; i < runList.size(); i++) histogram.run(runList.get(i));
+            long inputBits = histogram.bits();
+            long[] percentiles = {
+                histogram.percentile(0.5), histogram.percentile(0.9), histogram.percentile(0.99), histogram.percentile(1)
+            };
+            long escapes = (codes - runList.size()) / 2;
+
+            CompressionMetrics metrics = INSTANCE;
+            metrics.jobs.increment();
+            metrics.inputBits.add(inputBits);
+            metrics.outputBits.add(outputBits);
+            metrics.runs.add(runList.size());
+            metrics.escapes.add(escapes);
+            metrics.readNanos.add(readEnd - start);
+            metrics.encodeNanos.add(encodeEnd - readEnd);
+            metrics.writeNanos.add(end - encodeEnd);
+            metrics.lastPercentiles = percentiles;
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.inputBits = inputBits;
+                event.outputBits = outputBits;
+                event.runs = runList.size();
+                event.escapes = escapes;
+                event.runLengthP50 = percentiles[0];
+                event.runLengthP90 = percentiles[1];
+                event.runLengthP99 = percentiles[2];
+                event.runLengthMax = percentiles[3];
+                event.readNanos = readEnd - start;
+                event.encodeNanos = encodeEnd - readEnd;
+                event.writeNanos = end - encodeEnd;
+                event.bytesPerSecond = end == start ? 0 : inputBits / 8 * 1e9 / (end - start);
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public long getJobs() {
+        return jobs.sum();
+    }
+
+    @Override
+    public long getInputBits() {
+        return inputBits.sum();
+    }
+
+    @Override
+    public long getOutputBits() {
+        return outputBits.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long input = inputBits.sum();
+        return input == 0 ? 0 : (double) outputBits.sum() / input;
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    @Override
+    public long getEscapes() {
+        return escapes.sum();
+    }
+
+    @Override
+    public long getReadNanos() {
+        return readNanos.sum();
+    }
+
+    @Override
+    public long getEncodeNanos() {
+        return encodeNanos.sum();
+    }
+
+    @Override
+    public long getWriteNanos() {
+        return writeNanos.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        long nanos = readNanos.sum() + encodeNanos.sum() + writeNanos.sum();
+        return nanos == 0 ? 0 : inputBits.sum() / 8 * 1e9 / nanos;
+    }
+
+    @Override
+    public long getLastRunLengthP50() {
+        return lastPercentiles[0];
+    }
+
+    @Override
+    public long getLastRunLengthP90() {
+        return lastPercentiles[1];
+    }
+
+    @Override
+    public long getLastRunLengthP99() {
+        return lastPercentiles[2];
+    }
+
+    @Override
+    public long getLastRunLengthMax() {
+        return lastPercentiles[3];
+    }
+
+    @Override
+    public void reset() {
+        jobs.reset();
+        inputBits.reset();
+        outputBits.reset();
+        runs.reset();
+        escapes.reset();
+        readNanos.reset();
+        encodeNanos.reset();
+        writeNanos.reset();
+        lastPercentiles = new long[4];
+    }
+}
@@ -0,0 +1,63 @@
+/******************************************************************************
+ *  Compilation:  javac CompressionMetricsMXBean.java
+ *  Execution:    none (management interface)
+ *  Dependencies: none
+ *
+ *  The JMX view of the counters kept by CompressionMetrics.
+ *
+ ******************************************************************************/
+
+/**
+ *  The {@code CompressionMetricsMXBean} interface lists the attributes of
+ *  the {@code bitmapcompressor:type=CompressionMetrics} MBean. Totals cover
+ *  every job since the start or the last {@link #reset()}; run-length
+ *  percentiles are those of the most recent job.
+ *
+ *  @author Kieran Pichai
+ */
+public interface CompressionMetricsMXBean {
+    /** @return the number of compression jobs finished */
+    long getJobs();
+
+    /** @return the total size of the bitmaps compressed, in bits */
+    long getInputBits();
+
+    /** @return the total size of the compressed output, in bits */
+    long getOutputBits();
+
+    /** @return the output size as a fraction of the input size */
+    double getCompressionRatio();
+
+    /** @return the total number of runs found */
+    long getRuns();
+
+    /** @return the total number of {@code maxLength, 0} escape pairs written */
+    long getEscapes();
+
+    /** @return the total time spent reading the input and finding runs, in nanoseconds */
+    long getReadNanos();
+
+    /** @return the total time spent choosing a codec and encoding runs, in nanoseconds */
+    long getEncodeNanos();
+
+    /** @return the total time spent flushing the output, in nanoseconds */
+    long getWriteNanos();
+
+    /** @return bytes of bitmap compressed per second of job time */
+    double getBytesPerSecond();
+
+    /** @return the median run length of the last job */
+    long getLastRunLengthP50();
+
+    /** @return the 90th percentile run length of the last job */
+    long getLastRunLengthP90();
+
+    /** @return the 99th percentile run length of the last job */
+    long getLastRunLengthP99();
+
+    /** @return the longest run of the last job */
+    long getLastRunLengthMax();
+
+    /** Sets every counter back to 0. */
+    void reset();
+}
@@ -0,0 +1,427 @@
+/******************************************************************************
+ *  Compilation:  javac CompressionServer.java
+ *  Execution:    java CompressionServer serve 8750 16     (serve on port 8750, 16 requests at once)
+ *  Execution:    java CompressionServer - 8 http://localhost:8750 < input.bin > output.bin
+ *  Execution:    java CompressionServer - 8 framed http://localhost:8750 < input.bin > output.bin
+ *  Execution:    java CompressionServer - fax 2d 1728 http://localhost:8750 < input.bin > output.bin
+ *  Execution:    java CompressionServer - 8 tiled 20000 30000 http://localhost:8750 < input.bin > output.bin
+ *  Execution:    java CompressionServer + http://localhost:8750 < input.bin > output.bin
+ *  Dependencies: BinaryIn.java BinaryOut.java BitmapCompressor.java FramedCompressor.java
+ *                ParallelCompressor.java RowReferenceCompressor.java TiledCompressor.java
+ *                ImageCompressor.java RunCodec.java
+ *
+ *  A long-running compression service, so callers that used to start a JVM
+ *  for each bitmap can send it over HTTP to one that is already warm.
+ *
+ ******************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *  The {@code CompressionServer} class serves compress and expand requests
+ *  over HTTP on the loopback interface, and is also a client for it.
+ *  <p>
+ *  {@code POST /compress?codec=8} compresses the request body with a codec
+ *  named as on the {@link BitmapCompressor} command line, adding
+ *  {@code &layout=framed}, {@code &layout=parallel},
+ *  {@code &layout=2d&width=1728} or
+ *  {@code &layout=tiled&width=20000&height=30000} for the other formats,
+ *  or {@code &layout=image} for a PBM or BMP body.
+ *  {@code POST /expand} expands a body in any format. The answer is the
+ *  response body, sent with chunked encoding as it is written.
+ *  <p>
+ *  Every request has its own {@link BinaryIn} and {@link BinaryOut} over the
+ *  request and response bodies and runs on its own thread, so bodies are
+ *  never held whole: expanding and framed compression keep a block at a
+ *  time, and the original format keeps only the runs, as it must to write
+ *  their count first. Reads and writes block, so a slow client slows only
+ *  its own request, and TCP flow control pushes back on one that sends
+ *  faster than its bitmap is coded. At most {@code limit} requests are coded
+ *  at once; a request that can't start within a second is answered with
+ *  503 and a {@code Retry-After} header instead of queueing without bound.
+ *  <p>
+ *  A request that fails before any output is answered with 400 for a bad
+ *  request or stream, or 500 otherwise, with the reason as the body. Once
+ *  output has been sent the status can't change, so the connection is cut
+ *  and the client sees a truncated response.
+ *
+ *  @author Kieran Pichai
+ */
+public final class CompressionServer {
+    // How long a request waits for one of the limited slots before it is turned away
+    private static final long ADMIT_MILLIS = 1000;
+
+    // How long the client waits for any bytes of the response before giving up on the server
+    private static final int READ_TIMEOUT_MILLIS = 60_000;
+
+    private final HttpServer server;
+    private final ExecutorService threads;
+    private final Semaphore slots;
+
+    /**
+     * Starts a server on the loopback interface.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @param limit the number of requests coded at once
+     * @throws IllegalArgumentException unless {@code limit >= 1}
+     * @throws IllegalStateException if the port can't be bound
+     */
+    public CompressionServer(int port, int limit) {
+        if (limit < 1) throw new IllegalArgumentException("Illegal concurrency limit = " + limit);
+        slots = new Semaphore(limit, true);
+        // Virtual threads need Java 21, so each connection gets a platform thread, reused between connections
+        threads = Executors.newCachedThreadPool();
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        }
+        catch (IOException e) {
+            threads.shutdown();
+            throw new IllegalStateException("Could not listen on port " + port, e);
+        }
+        server.createContext("/compress", exchange -> handle(exchange, true));
+        server.createContext("/expand", exchange -> handle(exchange, false));
+        server.setExecutor(threads);
+        server.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     * @return the port
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, waits up to the given time for those being
+     * coded to finish, and stops the server.
+     * @param seconds the longest time to wait
+     */
+    public void stop(int seconds) {
+        server.stop(seconds);
+        threads.shutdownNow();
+    }
+
+    // Answers one request, within the concurrency limit
+    private void handle(HttpExchange exchange, boolean compress) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            fail(exchange, 405, "Use POST");
+            return;
+        }
+        boolean admitted;
+        try {
+            admitted = slots.tryAcquire(ADMIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if (!admitted) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            fail(exchange, 503, "Too many requests");
+            return;
+        }
+        try {
+            code(exchange, compress);
+        }
+        finally {
+            slots.release();
+        }
+    }
+
+    // Codes the request body into the response body, whose 200 status goes out with the first bytes
+    private static void code(HttpExchange exchange, boolean compress) throws IOException {
+        ResponseBody body = new ResponseBody(exchange);
+        try {
+            InputStream is = exchange.getRequestBody();
+            BinaryIn in = new BinaryIn(is);
+            BinaryOut out = new BinaryOut(body);
+            if (compress) compress(query(exchange.getRequestURI()), is, in, out);
+            else          BitmapCompressor.expand(in, out);
+            out.flush();
+            body.start();
+        }
+        catch (RuntimeException | Error e) {
+            // Throwing out of the handler makes the server drop the connection without ending the chunked body.
+            // An Error, such as a hostile header's OutOfMemoryError, would escape and leave the exchange open
+            if (body.started) throw new IOException("Failed after the response started", e);
+            boolean bad = e instanceof IllegalArgumentException || e instanceof NoSuchElementException;
+            fail(exchange, bad ? 400 : 500, bad ? String.valueOf(e.getMessage()) : e.toString());
+            return;
+        }
+        exchange.close();
+    }
+
+    // Compresses in the format the query names, as the BitmapCompressor command line would
+    private static void compress(Map<String, String> query, InputStream is, BinaryIn in, BinaryOut out) {
+        String codec = query.get("codec");
+        if (codec == null) throw new IllegalArgumentException("Missing codec");
+        String layout = query.getOrDefault("layout", "");
+        if (layout.equals("2d")) {
+            String width = query.get("width");
+            if (width == null) throw new IllegalArgumentException("Missing width");
+            RowReferenceCompressor.compress(in, out, Integer.parseInt(width), BitmapCompressor.codec(codec));
+        }
+        else if (layout.equals("tiled")) {
+            String width = query.get("width");
+            String height = query.get("height");
+            if (width == null || height == null) throw new IllegalArgumentException("Missing width or height");
+            TiledCompressor.compress(in, out, Integer.parseInt(width), Integer.parseInt(height), BitmapCompressor.codec(codec));
+        }
+        else if (layout.equals("image"))    ImageCompressor.compress(is, out, BitmapCompressor.codec(codec));
+        else if (layout.equals("framed"))   FramedCompressor.compress(in, out, BitmapCompressor.codec(codec));
+        else if (layout.equals("parallel")) ParallelCompressor.compress(is, out, BitmapCompressor.codec(codec));
+        else if (layout.isEmpty())          BitmapCompressor.compress(in, out, codec);
+        else throw new IllegalArgumentException("Unknown layout " + layout);
+    }
+
+    // The parameters of a query string
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = uri.getRawQuery();
+        if (query == null) return parameters;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) continue;
+            parameters.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                           URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    // Answers with an error status and a one-line reason
+    private static void fail(HttpExchange exchange, int status, String reason) throws IOException {
+        byte[] message = (reason + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, message.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(message);
+        }
+        exchange.close();
+    }
+
+    // The response body, whose headers are held back until there is output, so an early failure can still be reported
+    private static final class ResponseBody extends OutputStream {
+        private final HttpExchange exchange;
+        private OutputStream os;
+        private boolean started;
+
+        ResponseBody(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void start() throws IOException {
+            if (started) return;
+            started = true;
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            // A length of 0 means chunked encoding, since the size isn't known until the end
+            exchange.sendResponseHeaders(200, 0);
+            os = exchange.getResponseBody();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            start();
+            os.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start();
+            os.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Nothing to push before the first byte; the status waits for it
+            if (started) os.flush();
+        }
+    }
+
+    /**
+     * Sends a bitmap to a server and copies the answer to {@code out}, both
+     * streamed in blocks. The server starts answering before it has read the
+     * whole body, so the body is sent on a thread of its own while this one
+     * reads the answer; sending all of it first would leave both sides
+     * blocked on each other once the socket buffers fill. HTTP's own client
+     * classes send the whole body before reading, so the request is spoken
+     * over a plain socket, as HTTP/1.1 with chunked encoding both ways.
+     *
+     * @param server the address of the server, such as {@code http://localhost:8750}
+     * @param request the path and query, such as {@code /compress?codec=8} or {@code /expand}
+     * @param in the request body
+     * @param out where to copy the response body; flushed but not closed
+     * @throws IllegalStateException if the server can't be reached, refuses
+     *         the request (with its reason), cuts the response short or
+     *         sends nothing for a minute
+     */
+    public static void request(String server, String request, InputStream in, OutputStream out) {
+        URI uri = URI.create(server + request);
+        if (!"http".equals(uri.getScheme())) throw new IllegalArgumentException("Not an http address: " + server);
+        int port = uri.getPort() < 0 ? 80 : uri.getPort();
+        try (Socket socket = new Socket(uri.getHost(), port)) {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            OutputStream os = new BufferedOutputStream(socket.getOutputStream(), BinaryOut.BLOCK_SIZE + 16);
+            String target = uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+            os.write(("POST " + target + " HTTP/1.1\r\n"
+                    + "Host: " + uri.getHost() + ":" + port + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            os.flush();
+            Upload upload = new Upload(in, os);
+            Thread sender = new Thread(upload, "CompressionServer upload");
+            sender.setDaemon(true);
+            sender.start();
+
+            InputStream is = new BufferedInputStream(socket.getInputStream(), BinaryIn.BLOCK_SIZE);
+            String[] status = readLine(is).split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) throw new IOException("Not an HTTP response");
+            long length = -1;
+            boolean chunked = false;
+            for (String header = readLine(is); !header.isEmpty(); header = readLine(is)) {
+                int colon = header.indexOf(':');
+                if (colon < 0) continue;
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length"))    length = Long.parseLong(value);
+                if (name.equalsIgnoreCase("Transfer-Encoding")) chunked = value.equalsIgnoreCase("chunked");
+            }
+            if (!status[1].equals("200")) {
+                // An error is answered before the body is read, so the rest of the upload doesn't matter
+                String reason = new String(length < 0 ? is.readAllBytes() : is.readNBytes((int) length), StandardCharsets.UTF_8).trim();
+                throw new IllegalStateException("Server answered " + status[1] + ": " + reason);
+            }
+            byte[] block = new byte[BinaryIn.BLOCK_SIZE];
+            if      (chunked)    copyChunks(is, out, block);
+            else if (length < 0) is.transferTo(out);
+            else                 copy(is, out, length, block);
+            out.flush();
+            sender.join();
+            if (upload.error != null) throw upload.error;
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not complete request to " + server, e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for " + server, e);
+        }
+    }
+
+    // Sends a request body a chunk of up to one block at a time, as it is read, remembering why it stopped if it failed
+    private static final class Upload implements Runnable {
+        private final InputStream in;
+        private final OutputStream os;
+        private volatile IOException error;
+
+        Upload(InputStream in, OutputStream os) {
+            this.in = in;
+            this.os = os;
+        }
+
+        @Override
+        public void run() {
+            byte[] block = new byte[BinaryOut.BLOCK_SIZE];
+            try {
+                for (int n; (n = in.read(block, 0, block.length)) >= 0; ) {
+                    if (n == 0) continue;
+                    os.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    os.write(block, 0, n);
+                    os.write('\r');
+                    os.write('\n');
+                    os.flush();
+                }
+                os.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                os.flush();
+            }
+            catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    // Copies a body sent with chunked encoding, up to its last, empty chunk and the trailers after it
+    private static void copyChunks(InputStream is, OutputStream out, byte[] block) throws IOException {
+        while (true) {
+            String line = readLine(is);
+            int semicolon = line.indexOf(';');
+            long size = Long.parseLong(semicolon < 0 ? line.trim() : line.substring(0, semicolon).trim(), 16);
+            if (size == 0) break;
+            copy(is, out, size, block);
+            readLine(is);
+        }
+        while (!readLine(is).isEmpty()) { }
+    }
+
+    // Copies exactly n bytes through the block
+    private static void copy(InputStream is, OutputStream out, long n, byte[] block) throws IOException {
+        while (n > 0) {
+            int read = is.read(block, 0, (int) Math.min(n, block.length));
+            if (read < 0) throw new IOException("Response cut short");
+            out.write(block, 0, read);
+            n -= read;
+        }
+    }
+
+    // Reads one line of a response head, without its CRLF
+    private static String readLine(InputStream is) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = is.read(); c != '\n'; c = is.read()) {
+            if (c < 0) throw new IOException("Response cut short");
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Runs a server ("serve", the port and optionally the concurrency limit,
+     * by default two per core), or sends standard input to one and writes the
+     * answer to standard output ("-" and a codec, optionally followed by a
+     * layout and, for "2d", the row width or, for "tiled", the width and
+     * height, to compress; "+" to expand; then the server address).
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args[0].equals("serve")) {
+            int limit = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+            CompressionServer server = new CompressionServer(Integer.parseInt(args[1]), limit);
+            System.err.println("Listening on http://localhost:" + server.port() + " for " + limit + " requests at once");
+            return;
+        }
+        String request;
+        if (args[0].equals("-")) {
+            request = "/compress?codec=" + args[1];
+            // Between the codec and the address: the layout, then its width and height if it needs them
+            String[] names = { "layout", "width", "height" };
+            for (int i = 2; i < args.length - 1; i++) {
+                if (i - 2 == names.length) throw new IllegalArgumentException("Illegal command line argument");
+                request += "&" + names[i - 2] + "=" + args[i];
+            }
+        }
+        else if (args[0].equals("+")) request = "/expand";
+        else throw new IllegalArgumentException("Illegal command line argument");
+        request(args[args.length - 1], request, System.in, System.out);
+    }
+}
@@ -0,0 +1,183 @@
+/******************************************************************************
+ *  Compilation:  javac FramedCompressor.java
+ *  Execution:    java BitmapCompressor - 8 framed < input.bin   (compress)
+ *  Execution:    java BitmapCompressor + < input.bin            (expand)
+ *  Dependencies: BinaryIn.java BinaryOut.java RunScanner.java RunCodec.java
+ *
+ *  Compresses a bitmap as a stream of independently framed blocks of
+ *  run-length codes, so neither direction has to hold the whole bitmap.
+ *
+ ******************************************************************************/
+
+/**
+ *  The {@code FramedCompressor} class provides static methods for the
+ *  block-framed variant of the {@link BitmapCompressor} format.
+ *  <p>
+ *  The original format writes the total number of codes before the codes,
+ *  so every run has to be kept until the input ends. The framed format
+ *  writes an 8-bit {@link #TAG}, the {@link RunCodec} header (the 8-bit code
+ *  width for fixed-width codes), and then a sequence
+ *  of blocks, each one a 32-bit code count followed by that many codes.
+ *  A block with a count of 0 ends the stream. Each block starts on a run
+ *  of 0s, just like a whole stream in the original format, so the encoder
+ *  only ever holds one block of codes and the decoder writes each block as
+ *  soon as it has been read.
+ *  <p>
+ *  On noise or dithering most runs are shorter than their codes, and a
+ *  block of codes can be several times the size of the bits it stands for.
+ *  The encoder compares the two for every block and writes whichever is
+ *  smaller: a block of bits is marked by the top bit of its 32-bit header,
+ *  whose other 31 bits give the number of bits that follow as they are.
+ *  The output is then never more than the input plus 32 bits for each
+ *  block and a few bytes for the stream.
+ *
+ *  @author Kieran Pichai
+ */
+public class FramedCompressor {
+    /**
+     * Leading byte of a framed stream. Never a legal code width, so
+     * {@link BitmapCompressor#expand(BinaryIn, BinaryOut)} can tell the formats apart.
+     */
+    public static final int TAG = 0x80;
+
+    // Codes per full block, even so that the block after a full one starts on a run of 0s
+    private static final int BLOCK_CODES = 1 << 16;
+
+    // Top bit of a block header, set when the block holds bits instead of codes
+    private static final int RAW = 1 << 31;
+
+    // Bytes copied at a time out of a block of bits
+    private static final int COPY_BYTES = 1 << 13;
+
+    // don't instantiate
+    private FramedCompressor() { }
+
+    /**
+     * Reads a sequence of bits from {@code in}, compresses them into framed blocks,
+     * and writes the results to {@code out}. The output is flushed
+     * but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @param maxBitsCompressing the number of bits in each run-length code
+     */
+    public static void compress(BinaryIn in, BinaryOut out, int maxBitsCompressing) {
+        compress(in, out, RunCodec.fixed(maxBitsCompressing));
+    }
+
+    /**
+     * Reads a sequence of bits from {@code in}, compresses them into framed
+     * blocks of codes from the given codec, and writes the results to
+     * {@code out}. The output is flushed but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @param codec the code to write run lengths with
+     */
+    public static void compress(BinaryIn in, BinaryOut out, RunCodec codec) {
+        out.write(TAG, 8);
+        codec.writeHeader(out);
+        BlockEncoder encoder = new BlockEncoder(out, codec);
+        RunScanner scanner = new RunScanner(encoder);
+        scanner.scan(in);
+        scanner.finish();
+        encoder.writeBlock();
+        // Empty block marks the end of the stream
+        out.write(0);
+        out.flush();
+    }
+
+    // Collects codes into one block at a time, writing the block out each time it is full
+    private static final class BlockEncoder implements RunScanner.Sink {
+        private final BinaryOut out;
+        private final RunCodec codec;
+        private final int maxLength;
+        private final int[] codes = new int[BLOCK_CODES];
+        private int size;
+
+        BlockEncoder(BinaryOut out, RunCodec codec) {
+            this.out = out;
+            this.codec = codec;
+            this.maxLength = codec.maxLength();
+        }
+
+        @Override
+        public void run(long length) {
+            // Splits runs longer than one code can hold into maxLength, 0 pairs
+            while (length > maxLength) {
+                add(maxLength);
+                add(0);
+                length -= maxLength;
+            }
+            add((int) length);
+        }
+
+        private void add(int code) {
+            codes[size++] = code;
+            if (size == BLOCK_CODES) writeBlock();
+        }
+
+        // Writes the codes collected so far as one block, if there are any, or their bits if that is smaller
+        void writeBlock() {
+            if (size == 0) return;
+            long codeBits = 0;
+            long rawBits = 0;
+            for (int i = 0; i < size; i++) {
+                codeBits += codec.codeBits(codes[i], (i & 1) == 1);
+                rawBits += codes[i];
+            }
+            // No code is longer than 64 bits, so a block of bits smaller than its codes fits in 31 bits
+            if (rawBits < codeBits) {
+                out.write(RAW | (int) rawBits);
+                for (int i = 0; i < size; i++) {
+                    out.writeRepeated((i & 1) == 1, codes[i]);
+                }
+            }
+            else {
+                out.write(size);
+                for (int i = 0; i < size; i++) {
+                    codec.writeCode(out, codes[i], (i & 1) == 1);
+                }
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Reads the codec and blocks of a framed stream whose {@link #TAG}
+     * has already been read from {@code in}, decodes them, and writes the
+     * results to {@code out}. Each block is written as soon as it is decoded,
+     * and blocks of bits are copied a few kilobytes at a time.
+     *
+     * @param in the compressed bitmap, positioned just after the tag
+     * @param out where to write the expanded bitmap
+     */
+    public static void expandBlocks(BinaryIn in, BinaryOut out) {
+        RunCodec codec = RunCodec.readHeader(in.readInt(8), in);
+        byte[] copy = null;
+        for (int numRepeatCodes = in.readInt(); numRepeatCodes != 0; numRepeatCodes = in.readInt()) {
+            if ((numRepeatCodes & RAW) != 0) {
+                if (copy == null) copy = new byte[COPY_BYTES];
+                copyBits(in, out, numRepeatCodes & ~RAW, copy);
+                continue;
+            }
+            boolean previousBit = false;
+            for (int i = 0; i < numRepeatCodes; i++) {
+                out.writeRepeated(previousBit, codec.readCode(in, previousBit));
+                previousBit = !previousBit;
+            }
+        }
+    }
+
+    // Copies bits from in to out through a byte array, the last few bits on their own
+    private static void copyBits(BinaryIn in, BinaryOut out, long bits, byte[] copy) {
+        for (long bytes = bits >>> 3; bytes > 0; ) {
+            int len = (int) Math.min(bytes, copy.length);
+            in.readBytes(copy, 0, len);
+            out.write(copy, 0, len);
+            bytes -= len;
+        }
+        int rest = (int) (bits & 7);
+        if (rest > 0) out.write(in.readInt(rest), rest);
+    }
+}
@@ -0,0 +1,329 @@
+/******************************************************************************
+ *  Compilation:  javac HuffmanCodec.java
+ *  Execution:    java BitmapCompressor - huffman < input.bin   (fitted tables)
+ *  Execution:    java BitmapCompressor - fax < input.bin       (built-in tables)
+ *  Dependencies: BinaryIn.java BinaryOut.java RunCodec.java RunList.java
+ *
+ *  Huffman codes for run lengths in the style of fax Modified Huffman,
+ *  with separate tables for runs of 0s (white) and runs of 1s (black).
+ *
+ ******************************************************************************/
+
+import java.util.PriorityQueue;
+
+/**
+ *  The {@code HuffmanCodec} class writes run lengths with canonical Huffman
+ *  codes, one table for white runs (0s) and one for black runs (1s), since
+ *  the two colours have very different length distributions in scanned
+ *  documents.
+ *  <p>
+ *  As in CCITT Modified Huffman, each table has 64 terminating codes for
+ *  runs of 0 to 63 and {@link #MAKEUP} make-up codes for multiples of 64.
+ *  A run of 64 or more is a make-up code followed by a terminating code, and
+ *  runs longer than {@code 64 * MAKEUP + 63} use the usual
+ *  {@code maxLength, 0} escape pairs.
+ *  <p>
+ *  The tables are either fitted to the runs of the bitmap, or the built-in
+ *  tables, whose code lengths follow the ITU-T T.4 tables. The header is the
+ *  8-bit id {@link #HUFFMAN}, one bit that is set for the built-in tables,
+ *  and otherwise the 4-bit code length of every symbol of each table, with
+ *  runs of unused symbols collapsed, which is all a decoder needs to rebuild
+ *  canonical codes. Codes are limited to
+ *  {@link #MAX_BITS} bits, and the decoder reads each one with a single
+ *  lookup in a table indexed by the next {@code MAX_BITS} (or fewer) bits.
+ *
+ *  @author Kieran Pichai
+ */
+public class HuffmanCodec extends RunCodec {
+    /**
+     * Id of the Huffman codec in the header.
+     */
+    public static final int HUFFMAN = 0x60;
+
+    /**
+     * Number of make-up codes per table.
+     */
+    public static final int MAKEUP = 40;
+
+    /**
+     * Longest code in bits.
+     */
+    public static final int MAX_BITS = 15;
+
+    private static final int TERMINATING = 64;                  // codes for runs of 0 to 63
+    private static final int SYMBOLS = TERMINATING + MAKEUP;    // symbols per table
+
+    // Code lengths of the T.4 white tables: terminating codes, then make-up codes for 64 to 2560
+    private static final int[] FAX_WHITE = {
+        8, 6, 4, 4, 4, 4, 4, 4, 5, 5, 5, 5, 6, 6, 6, 6, 6, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 8, 8,
+        8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8,
+        5, 5, 6, 7, 8, 8, 8, 8, 8, 8, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 6, 9,
+        11, 11, 11, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12
+    };
+
+    // Code lengths of the T.4 black tables: terminating codes, then make-up codes for 64 to 2560
+    private static final int[] FAX_BLACK = {
+        10, 3, 2, 2, 3, 4, 4, 5, 6, 6, 7, 7, 7, 8, 8, 9, 10, 10, 10, 11, 11, 11, 11, 11, 11, 11, 12, 12, 12, 12, 12, 12,
+        12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12,
+        10, 12, 12, 12, 12, 12, 12, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13,
+        11, 11, 11, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12
+    };
+
+    private static HuffmanCodec fax;    // built-in tables, built on first use
+
+    private final Table white;
+    private final Table black;
+    private final boolean builtIn;
+
+    private HuffmanCodec(Table white, Table black, boolean builtIn) {
+        this.white = white;
+        this.black = black;
+        this.builtIn = builtIn;
+    }
+
+    /**
+     * Returns the codec with the built-in tables, which needs no pass over
+     * the input and so also works with the block-framed format.
+     * @return the codec with the built-in tables
+     */
+    public static synchronized HuffmanCodec fax() {
+        if (fax == null) {
+            fax = new HuffmanCodec(new Table(lengths(weights(FAX_WHITE))), new Table(lengths(weights(FAX_BLACK))), true);
+        }
+        return fax;
+    }
+
+    /**
+     * Returns a codec with tables fitted to the given runs, which alternate
+     * colours starting with a run of 0s, or the built-in tables if they give
+     * smaller output once the size of the fitted tables is counted.
+     * @param runs the runs that will be encoded
+     * @return the codec that encodes them in the fewest bits
+     */
+    public static HuffmanCodec fit(RunList runs) {
+        long[][] freq = new long[2][SYMBOLS];
+        int maxLength = TERMINATING * MAKEUP + TERMINATING - 1;
+        for (int i = 0; i < runs.size(); i++) {
+            int colour = i & 1;
+            long length = runs.get(i);
+            // Same split as writeRun(): maxLength, 0 pairs, then make-up and terminating codes
+            if (length > maxLength) {
+                long pairs = (length - 1) / maxLength;
+                count(freq[colour], maxLength, pairs);
+                count(freq[colour ^ 1], 0, pairs);
+                length -= pairs * maxLength;
+            }
+            count(freq[colour], (int) length, 1);
+        }
+        HuffmanCodec fitted = new HuffmanCodec(new Table(lengths(freq[0])), new Table(lengths(freq[1])), false);
+        // Small bitmaps can be cheaper with the built-in tables than with fitted tables in the header
+        return fitted.cost(runs) <= fax().cost(runs) ? fitted : fax();
+    }
+
+    // Adds times uses of the symbols for one code of the given run length
+    private static void count(long[] freq, int code, long times) {
+        if (code >= TERMINATING) freq[TERMINATING - 1 + code / TERMINATING] += times;
+        freq[code % TERMINATING] += times;
+    }
+
+    // Turns the code lengths of a fixed table into symbol weights, so a valid code can be built from them
+    private static long[] weights(int[] lengths) {
+        long[] freq = new long[SYMBOLS];
+        for (int s = 0; s < SYMBOLS; s++) {
+            freq[s] = 1L << (16 - lengths[s]);
+        }
+        return freq;
+    }
+
+    // Huffman code lengths for the given symbol frequencies, no longer than MAX_BITS
+    private static int[] lengths(long[] freq) {
+        long[] f = freq.clone();
+        while (true) {
+            int[] lengths = huffman(f);
+            int longest = 0;
+            for (int length : lengths) longest = Math.max(longest, length);
+            if (longest <= MAX_BITS) return lengths;
+            // Flattens the distribution until the deepest code fits
+            for (int s = 0; s < SYMBOLS; s++) {
+                if (f[s] != 0) f[s] = (f[s] >>> 1) + 1;
+            }
+        }
+    }
+
+    // Plain Huffman code lengths, 0 for unused symbols and 1 if only one symbol is used
+    private static int[] huffman(long[] freq) {
+        int[] parent = new int[2 * SYMBOLS];
+        PriorityQueue<long[]> pq = new PriorityQueue<long[]>((a, b) -> Long.compare(a[0], b[0]));
+        for (int s = 0; s < SYMBOLS; s++) {
+            if (freq[s] != 0) pq.add(new long[] { freq[s], s });
+        }
+        int[] lengths = new int[SYMBOLS];
+        if (pq.size() == 1) lengths[(int) pq.peek()[1]] = 1;
+        int next = SYMBOLS;
+        while (pq.size() > 1) {
+            long[] x = pq.poll();
+            long[] y = pq.poll();
+            parent[(int) x[1]] = next;
+            parent[(int) y[1]] = next;
+            pq.add(new long[] { x[0] + y[0], next++ });
+        }
+        // Root is the last node made; each symbol's length is its distance from the root
+        for (int s = 0; s < SYMBOLS && next > SYMBOLS; s++) {
+            if (freq[s] == 0) continue;
+            for (int node = s; node != next - 1; node = parent[node]) lengths[s]++;
+        }
+        return lengths;
+    }
+
+    @Override
+    public int maxLength() {
+        return TERMINATING * MAKEUP + TERMINATING - 1;
+    }
+
+    @Override
+    public boolean codesEveryLength() {
+        // The built-in tables give every symbol a code; fitted ones only those that occurred
+        return builtIn;
+    }
+
+    @Override
+    public int codeBits(int code, boolean black) {
+        Table t = black ? this.black : white;
+        int bits = t.lengths[code % TERMINATING];
+        if (code >= TERMINATING) bits += t.lengths[TERMINATING - 1 + code / TERMINATING];
+        return bits;
+    }
+
+    @Override
+    public void writeCode(BinaryOut out, int code, boolean black) {
+        Table t = black ? this.black : white;
+        if (code >= TERMINATING) t.write(out, TERMINATING - 1 + code / TERMINATING);
+        t.write(out, code % TERMINATING);
+    }
+
+    @Override
+    public int readCode(BinaryIn in, boolean black) {
+        Table t = black ? this.black : white;
+        int symbol = t.read(in);
+        if (symbol < TERMINATING) return symbol;
+        // Make-up code, always followed by a terminating code
+        int rest = t.read(in);
+        if (rest >= TERMINATING) throw new IllegalArgumentException("Make-up code followed by make-up code");
+        return (symbol - TERMINATING + 1) * TERMINATING + rest;
+    }
+
+    @Override
+    public void writeHeader(BinaryOut out) {
+        out.write(HUFFMAN, 8);
+        out.write(builtIn);
+        if (builtIn) return;
+        writeLengths(out, white.lengths);
+        writeLengths(out, black.lengths);
+    }
+
+    /**
+     * Reads the tables of a Huffman-coded stream whose id has already been read.
+     * @param in the stream, positioned just after the id
+     * @return the codec the stream was written with
+     */
+    public static HuffmanCodec readTables(BinaryIn in) {
+        if (in.readBoolean()) return fax();
+        int[] white = readLengths(in);
+        int[] black = readLengths(in);
+        return new HuffmanCodec(new Table(white), new Table(black), false);
+    }
+
+    // 4-bit code length of each symbol; a 0 is followed by the Elias-gamma coded number of further unused symbols
+    private static int writeLengths(BinaryOut out, int[] lengths) {
+        RunCodec gamma = RunCodec.golomb(0);
+        int bits = 0;
+        for (int s = 0; s < SYMBOLS; s++) {
+            if (out != null) out.write(lengths[s], 4);
+            bits += 4;
+            if (lengths[s] != 0) continue;
+            int zeros = 0;
+            while (s + 1 < SYMBOLS && lengths[s + 1] == 0) {
+                zeros++;
+                s++;
+            }
+            if (out != null) gamma.writeCode(out, zeros, false);
+            bits += gamma.codeBits(zeros, false);
+        }
+        return bits;
+    }
+
+    private static int[] readLengths(BinaryIn in) {
+        RunCodec gamma = RunCodec.golomb(0);
+        int[] lengths = new int[SYMBOLS];
+        for (int s = 0; s < SYMBOLS; s++) {
+            lengths[s] = in.readInt(4);
+            if (lengths[s] == 0) s += gamma.readCode(in, false);
+        }
+        return lengths;
+    }
+
+    // Size of the header after the id, which is far smaller for the built-in tables
+    private int headerBits() {
+        if (builtIn) return 1;
+        return 1 + writeLengths(null, white.lengths) + writeLengths(null, black.lengths);
+    }
+
+    // Exact size of the header and codes for the runs
+    private long cost(RunList runs) {
+        long bits = headerBits();
+        for (int i = 0; i < runs.size(); i++) {
+            bits += runBits(runs.get(i), (i & 1) == 1);
+        }
+        return bits;
+    }
+
+    // Canonical code for one colour, with a lookup table for decoding
+    private static final class Table {
+        private final int[] lengths = new int[SYMBOLS];   // code length of each symbol, 0 if unused
+        private final int[] codes = new int[SYMBOLS];     // canonical code of each symbol
+        private final int tableBits;                      // bits indexed by decode[]
+        private final int[] decode;                       // next tableBits bits -> symbol << 4 | length
+
+        Table(int[] lengths) {
+            // Canonical codes: shorter codes first, equal lengths in symbol order
+            int[] perLength = new int[MAX_BITS + 1];
+            int longest = 1;
+            for (int s = 0; s < SYMBOLS; s++) {
+                if (lengths[s] < 0 || lengths[s] > MAX_BITS) throw new IllegalArgumentException("Illegal code length " + lengths[s]);
+                this.lengths[s] = lengths[s];
+                perLength[lengths[s]]++;
+                longest = Math.max(longest, lengths[s]);
+            }
+            perLength[0] = 0;
+            int[] next = new int[MAX_BITS + 2];
+            for (int bits = 1, code = 0; bits <= MAX_BITS; bits++) {
+                code = (code + perLength[bits - 1]) << 1;
+                next[bits] = code;
+                if (code + perLength[bits] > 1 << bits) throw new IllegalArgumentException("Code lengths do not form a prefix code");
+            }
+            tableBits = longest;
+            decode = new int[1 << tableBits];
+            for (int s = 0; s < SYMBOLS; s++) {
+                int bits = lengths[s];
+                if (bits == 0) continue;
+                codes[s] = next[bits]++;
+                int first = codes[s] << (tableBits - bits);
+                for (int i = 0; i < 1 << (tableBits - bits); i++) {
+                    decode[first + i] = s << 4 | bits;
+                }
+            }
+        }
+
+        void write(BinaryOut out, int symbol) {
+            if (lengths[symbol] == 0) throw new IllegalArgumentException("No code for symbol " + symbol);
+            out.writeBits(codes[symbol], lengths[symbol]);
+        }
+
+        int read(BinaryIn in) {
+            int entry = decode[in.peekBits(tableBits)];
+            if (entry == 0) throw new IllegalArgumentException("Invalid Huffman code");
+            in.skipBits(entry & 0xf);
+            return entry >>> 4;
+        }
+    }
+}
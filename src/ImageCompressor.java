@@ -0,0 +1,331 @@
+/******************************************************************************
+ *  Compilation:  javac ImageCompressor.java
+ *  Execution:    java ImageCompressor - 8 < page.pbm > page.bin     (compress a PBM or BMP image)
+ *  Execution:    java ImageCompressor pbm < page.bin > page.pbm     (expand to a PBM image)
+ *  Execution:    java ImageCompressor bmp < page.bin > page.bmp     (expand to a BMP image)
+ *  Execution:    java BitmapCompressor + < page.bin > page.raw      (expand to bare bits)
+ *  Dependencies: BinaryIn.java BinaryOut.java RunScanner.java RunList.java RunCodec.java
+ *                RunIterator.java BitmapCompressor.java
+ *
+ *  Compresses 1-bit PBM (P4) and BMP images as they are read, and writes
+ *  them back out, without separate passes to strip and restore their
+ *  headers and row padding.
+ *
+ ******************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *  The {@code ImageCompressor} class provides static methods for the image
+ *  variant of the {@link BitmapCompressor} format, which records the width
+ *  and height of the image it holds.
+ *  <p>
+ *  The stream is the 8-bit {@link #TAG}, the 32-bit width and height, and
+ *  then the pixels, a row after another from the top with no padding, as a
+ *  complete stream in the original format. 1 is black, as in PBM.
+ *  {@link BitmapCompressor#expand(BinaryIn, BinaryOut)} expands it to those
+ *  bare bits, and {@link RunIterator} reads its runs.
+ *  <p>
+ *  {@link #compress} reads a binary PBM ({@code P4}) or an uncompressed
+ *  1-bit BMP, told apart by their first two bytes. After the header each
+ *  row is read into one array and only its {@code width} pixels are scanned
+ *  for runs, so the padding at the end of each row is never copied. A BMP
+ *  whose first palette entry is the darker one has its rows inverted as
+ *  they are read. A BMP stored bottom-up, as most are, is scanned row by
+ *  row as it comes, and its rows' runs are put back in top-down order at
+ *  the end; the runs are kept until then anyway, since their count comes
+ *  first.
+ *  <p>
+ *  {@link #expandImage} writes a PBM or a BMP in a single pass over the
+ *  runs, splitting them at row ends into one padded row buffer. BMPs are
+ *  written top-down, with a negative height, so no row has to wait for the
+ *  ones below it.
+ *
+ *  @author Kieran Pichai
+ */
+public class ImageCompressor {
+    /**
+     * Leading byte of an image stream. Never a legal codec id, so
+     * {@link BitmapCompressor#expand(BinaryIn, BinaryOut)} can tell the formats apart.
+     */
+    public static final int TAG = 0x85;
+
+    // Sizes of the BMP file header, of the BITMAPINFOHEADER written, and of a 2-colour palette
+    private static final int BMP_FILE_HEADER = 14;
+    private static final int BMP_INFO_HEADER = 40;
+    private static final int BMP_PALETTE = 2 * 4;
+
+    // don't instantiate
+    private ImageCompressor() { }
+
+    /**
+     * Reads a PBM (P4) or 1-bit BMP image from {@code in}, compresses it with
+     * its width and height, and writes the results to {@code out}. The output
+     * is flushed but neither stream is closed.
+     *
+     * @param in the image to compress
+     * @param out where to write the compressed image
+     * @param codec the code to write run lengths with
+     * @throws IllegalArgumentException if the image is neither, is not 1 bit
+     *         per pixel, is compressed, or is cut short
+     * @throws IllegalStateException if the image can't be read
+     */
+    public static void compress(InputStream in, BinaryOut out, RunCodec codec) {
+        InputStream is = new BufferedInputStream(in, BinaryIn.BLOCK_SIZE);
+        try {
+            int first = is.read();
+            int second = is.read();
+            RunList runs;
+            int width, height;
+            if (first == 'P' && second == '4') {
+                width = pbmNumber(is);
+                height = pbmNumber(is);
+                // readRows takes the whole rows that follow the single whitespace after the height
+                runs = readRows(is, width, height, (width + 7) / 8, false, false);
+            }
+            else if (first == 'B' && second == 'M') {
+                ByteBuffer header = ByteBuffer.wrap(readFully(is, BMP_FILE_HEADER - 2 + 4)).order(ByteOrder.LITTLE_ENDIAN);
+                long dataOffset = header.getInt(8) & 0xffffffffL;
+                int infoSize = header.getInt(12);
+                if (infoSize < 12 || infoSize > dataOffset) throw new IllegalArgumentException("Unknown BMP header of " + infoSize + " bytes");
+                ByteBuffer info = ByteBuffer.wrap(readFully(is, infoSize - 4)).order(ByteOrder.LITTLE_ENDIAN);
+                int bitsPerPixel;
+                int entrySize;
+                boolean bottomUp;
+                if (infoSize == 12) {
+                    // The old OS/2 header has unsigned 16-bit sizes, 3-byte palette entries and is always bottom-up
+                    width = info.getShort(0) & 0xffff;
+                    height = info.getShort(2) & 0xffff;
+                    bitsPerPixel = info.getShort(6);
+                    entrySize = 3;
+                    bottomUp = true;
+                }
+                else {
+                    width = info.getInt(0);
+                    height = info.getInt(4);
+                    bitsPerPixel = info.getShort(10);
+                    int compression = info.getInt(12);
+                    if (compression != 0) throw new IllegalArgumentException("Compressed BMPs are not supported");
+                    entrySize = 4;
+                    // A negative height means the rows are stored top-down
+                    bottomUp = height > 0;
+                }
+                if (bitsPerPixel != 1) throw new IllegalArgumentException("Not a 1-bit BMP: " + bitsPerPixel + " bits per pixel");
+                if (width < 1 || height == Integer.MIN_VALUE) throw new IllegalArgumentException("Illegal BMP size " + width + " x " + height);
+                long paletteOffset = BMP_FILE_HEADER + infoSize;
+                if (dataOffset < paletteOffset + 2 * entrySize) throw new IllegalArgumentException("BMP has no palette");
+                byte[] palette = readFully(is, (int) (dataOffset - paletteOffset));
+                // Entries are blue, green, red; 1 must be black, so rows are inverted if entry 0 is the darker
+                boolean invert = brightness(palette, 0) < brightness(palette, entrySize);
+                height = Math.abs(height);
+                long rowBytes = ((long) width + 31) / 32 * 4;
+                if (rowBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("BMP rows too wide: " + width);
+                runs = readRows(is, width, height, (int) rowBytes, invert, bottomUp);
+            }
+            else throw new IllegalArgumentException("Not a PBM (P4) or BMP image");
+
+            out.write(TAG, 8);
+            out.write(width);
+            out.write(height);
+            BitmapCompressor.writeRuns(out, runs, codec);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not read image", e);
+        }
+    }
+
+    // Reads a decimal number of a PBM header, skipping whitespace and comments before it and one whitespace after
+    private static int pbmNumber(InputStream is) throws IOException {
+        int c = is.read();
+        while (c == '#' || Character.isWhitespace(c)) {
+            if (c == '#') while (c != '\n' && c != '\r' && c != -1) c = is.read();
+            c = is.read();
+        }
+        if (c < '0' || c > '9') throw new IllegalArgumentException("Bad PBM header");
+        long n = 0;
+        for (; c >= '0' && c <= '9'; c = is.read()) {
+            n = 10 * n + (c - '0');
+            if (n > Integer.MAX_VALUE) throw new IllegalArgumentException("PBM size too large");
+        }
+        if (!Character.isWhitespace(c)) throw new IllegalArgumentException("Bad PBM header");
+        return (int) n;
+    }
+
+    // Sum of the colour channels of a palette entry
+    private static int brightness(byte[] palette, int entry) {
+        return (palette[entry] & 0xff) + (palette[entry + 1] & 0xff) + (palette[entry + 2] & 0xff);
+    }
+
+    // Reads exactly n bytes
+    private static byte[] readFully(InputStream is, int n) throws IOException {
+        byte[] b = is.readNBytes(n);
+        if (b.length < n) throw new IllegalArgumentException("Image is cut short");
+        return b;
+    }
+
+    // Scans the first width pixels of each padded row into runs, in top-down order
+    private static RunList readRows(InputStream is, int width, int height, int rowBytes,
+                                    boolean invert, boolean bottomUp) throws IOException {
+        if (width < 1) throw new IllegalArgumentException("Illegal image width = " + width);
+        byte[] row = new byte[rowBytes];
+        ByteBuffer rowBuffer = ByteBuffer.wrap(row);
+        RunList runs = new RunList();
+        // Bottom-up rows are scanned one at a time, each starting with 0s, and joined in reverse at the end
+        RunList rowRuns = bottomUp ? new RunList() : runs;
+        int[] rowStarts = bottomUp ? new int[height + 1] : null;
+        RunScanner scanner = new RunScanner(rowRuns);
+        for (int y = 0; y < height; y++) {
+            if (is.readNBytes(row, 0, rowBytes) < rowBytes) throw new IllegalArgumentException("Image is cut short");
+            if (invert) for (int i = 0; i < rowBytes; i++) row[i] = (byte) ~row[i];
+            if (bottomUp) rowStarts[y] = rowRuns.size();
+            scanner.scan(rowBuffer.clear(), width);
+            if (bottomUp) scanner.finish();
+        }
+        if (!bottomUp) {
+            scanner.finish();
+            return runs;
+        }
+        rowStarts[height] = rowRuns.size();
+        boolean colour = false;
+        long length = 0;
+        for (int y = height - 1; y >= 0; y--) {
+            for (int i = rowStarts[y]; i < rowStarts[y + 1]; i++) {
+                long n = rowRuns.get(i);
+                if (n == 0) continue;
+                boolean black = ((i - rowStarts[y]) & 1) == 1;
+                if (black != colour) {
+                    runs.run(length);
+                    colour = black;
+                    length = 0;
+                }
+                length += n;
+            }
+        }
+        runs.run(length);
+        return runs;
+    }
+
+    /**
+     * Reads an image stream from {@code in}, from its {@link #TAG}, and writes
+     * it to {@code out} as a PBM (P4) or a 1-bit BMP image. The output is
+     * flushed but neither stream is closed.
+     *
+     * @param in the compressed image
+     * @param out where to write the image
+     * @param format "pbm" or "bmp"
+     * @throws IllegalArgumentException if {@code in} isn't an image stream,
+     *         or {@code format} names neither
+     * @throws IllegalStateException if the image can't be written
+     */
+    public static void expandImage(BinaryIn in, OutputStream out, String format) {
+        boolean bmp = format.equals("bmp");
+        if (!bmp && !format.equals("pbm")) throw new IllegalArgumentException("Unknown image format " + format);
+        if (in.readInt(8) != TAG) throw new IllegalArgumentException("Not an image stream");
+        int width = in.readInt();
+        int height = in.readInt();
+        if (width < 1 || height < 0) throw new IllegalArgumentException("Illegal image size " + width + " x " + height);
+        long rowBytes = bmp ? ((long) width + 31) / 32 * 4 : ((long) width + 7) / 8;
+        if (rowBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("Rows too wide: " + width);
+        RunIterator runs = new RunIterator(in);
+        try {
+            OutputStream os = new BufferedOutputStream(out, BinaryOut.BLOCK_SIZE);
+            if (bmp) writeBmpHeader(os, width, height, rowBytes);
+            else     os.write(("P4\n" + width + " " + height + "\n").getBytes(StandardCharsets.US_ASCII));
+
+            byte[] row = new byte[(int) rowBytes];
+            long rowStart = 0;
+            boolean more = runs.next();
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(row, (byte) 0);
+                long rowEnd = rowStart + width;
+                // A run may cover many rows, so it stays current until a row ends inside it
+                while (more && runs.start() < rowEnd) {
+                    long end = runs.start() + runs.length();
+                    if (runs.isBlack()) {
+                        setBits(row, (int) (Math.max(runs.start(), rowStart) - rowStart), (int) (Math.min(end, rowEnd) - rowStart));
+                    }
+                    if (end > rowEnd) break;
+                    more = runs.next();
+                }
+                os.write(row);
+                rowStart = rowEnd;
+            }
+            os.flush();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not write image", e);
+        }
+    }
+
+    // Sets bits [from, to) of a row, whole bytes at a time in the middle
+    private static void setBits(byte[] row, int from, int to) {
+        if (from >= to) return;
+        int first = from >>> 3, last = (to - 1) >>> 3;
+        int head = 0xff >>> (from & 7);
+        int tail = 0xff << (7 - ((to - 1) & 7));
+        if (first == last) {
+            row[first] |= (byte) (head & tail);
+            return;
+        }
+        row[first] |= (byte) head;
+        Arrays.fill(row, first + 1, last, (byte) 0xff);
+        row[last] |= (byte) tail;
+    }
+
+    // Writes the file header, a BITMAPINFOHEADER for a top-down 1-bit image, and a white, black palette
+    private static void writeBmpHeader(OutputStream os, int width, int height, long rowBytes) throws IOException {
+        int headers = BMP_FILE_HEADER + BMP_INFO_HEADER + BMP_PALETTE;
+        long imageBytes = rowBytes * height;
+        if (headers + imageBytes > 0xffffffffL) throw new IllegalArgumentException("Image too large for a BMP");
+        ByteBuffer b = ByteBuffer.allocate(headers).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte) 'B').put((byte) 'M').putInt((int) (headers + imageBytes)).putInt(0).putInt(headers);
+        b.putInt(BMP_INFO_HEADER).putInt(width).putInt(-height).putShort((short) 1).putShort((short) 1);
+        // No compression, the image size, 2835 pixels per metre (72 dpi) both ways, two colours
+        b.putInt(0).putInt((int) imageBytes).putInt(2835).putInt(2835).putInt(2).putInt(2);
+        b.putInt(0x00ffffff).putInt(0x00000000);
+        os.write(b.array());
+    }
+
+    /**
+     * Reads the stream of an image stream whose {@link #TAG} has already been
+     * read from {@code in}, decodes it, and writes its pixels to {@code out}
+     * as bare bits, a row after another.
+     *
+     * @param in the compressed image, positioned just after the tag
+     * @param out where to write the expanded pixels
+     */
+    public static void expandStream(BinaryIn in, BinaryOut out) {
+        // The width and height only matter to image files
+        in.skipBits(64);
+        BitmapCompressor.decodeRuns(in.readInt(8), in, out);
+    }
+
+    /**
+     * Compresses a PBM or BMP image from standard input ("-" and a code
+     * width, "gamma" or "fax", as for {@link BitmapCompressor#codec(String)}),
+     * or expands an image stream from standard input to a "pbm" or "bmp"
+     * image, to standard output.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args[0].equals("-")) {
+            BinaryOut out = new BinaryOut(System.out);
+            compress(System.in, out, BitmapCompressor.codec(args[1]));
+            out.close();
+        }
+        else if (args[0].equals("pbm") || args[0].equals("bmp")) {
+            expandImage(new BinaryIn(System.in), System.out, args[0]);
+            System.out.close();
+        }
+        else throw new IllegalArgumentException("Illegal command line argument");
+    }
+}
@@ -0,0 +1,192 @@
+/******************************************************************************
+ *  Compilation:  javac MappedFile.java
+ *  Execution:    java BitmapCompressor - 8 input.bin output.bin   (compress)
+ *  Execution:    java BitmapCompressor + input.bin output.bin     (expand)
+ *  Dependencies: RunScanner.java
+ *
+ *  Reads and writes files through memory mappings instead of pipes, for
+ *  bitmaps too large to want every byte copied through System.in/out.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  The {@code MappedFile} class provides static methods for working on
+ *  files with {@link FileChannel#map}.
+ *  <p>
+ *  A file is mapped one window of up to {@code 2^30} bytes at a time, since a
+ *  single mapping can't exceed 2 GB. {@link #scan(Path, RunScanner)} hands
+ *  each window straight to a {@link RunScanner}, which reads its 64-bit words
+ *  in place, so compressing a file never copies the bitmap at all. The
+ *  streams from {@link #input(Path)} and {@link #output(Path, long)} copy
+ *  between the mapping and the caller's buffer once, with no pipe or stream
+ *  buffer in between, so they can back a {@link BinaryIn} or {@link BinaryOut}.
+ *  The output file is grown a window at a time, starting from a size hint,
+ *  and cut to the bytes actually written when the stream is closed.
+ *
+ *  @author Kieran Pichai
+ */
+public final class MappedFile {
+    // Largest window mapped at once; a multiple of 8 so only the last window of a file ends inside a word
+    private static final long WINDOW = 1L << 30;
+
+    // Smallest window added to an output file once the size hint is used up
+    private static final long GROW = 1L << 24;
+
+    // don't instantiate
+    private MappedFile() { }
+
+    /**
+     * Scans every bit of a file with the given scanner, mapping it one window
+     * at a time. Does not call {@link RunScanner#finish()}.
+     *
+     * @param file the file to scan
+     * @param scanner the scanner to feed the bits to
+     * @throws IllegalStateException if the file can't be read
+     */
+    public static void scan(Path file, RunScanner scanner) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += WINDOW) {
+                scanner.scan(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position)));
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not map " + file, e);
+        }
+    }
+
+    /**
+     * Opens a file for reading through memory mappings.
+     *
+     * @param file the file to read
+     * @return a stream of the bytes of the file
+     * @throws IllegalStateException if the file can't be opened
+     */
+    public static InputStream input(Path file) {
+        try {
+            return new Input(FileChannel.open(file, StandardOpenOption.READ));
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not open " + file, e);
+        }
+    }
+
+    /**
+     * Creates or replaces a file and opens it for writing through memory
+     * mappings. The first {@code size} bytes are mapped at once; the file is
+     * cut to the number of bytes written when the stream is closed.
+     *
+     * @param file the file to write
+     * @param size the expected size of the file in bytes; a good guess saves remapping
+     * @return a stream that writes to the file
+     * @throws IllegalStateException if the file can't be created
+     */
+    public static OutputStream output(Path file, long size) {
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            return new Output(channel, size);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not create " + file, e);
+        }
+    }
+
+    // Serves the bytes of a file from one mapped window at a time
+    private static final class Input extends InputStream {
+        private final FileChannel channel;
+        private final long size;
+        private long position;              // file offset of the start of window
+        private MappedByteBuffer window;
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        // Maps the next window once the current one is used up, returning false at end of file
+        private boolean ensure() throws IOException {
+            if (window != null && window.hasRemaining()) return true;
+            if (window != null) position += window.capacity();
+            if (position >= size) return false;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensure()) return -1;
+            return window.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!ensure()) return -1;
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+
+    // Writes into one mapped window at a time, growing the file as windows fill up
+    private static final class Output extends OutputStream {
+        private final FileChannel channel;
+        private long next;                  // size to map for the first window
+        private long position;              // file offset of the start of window
+        private MappedByteBuffer window;
+
+        Output(FileChannel channel, long size) {
+            this.channel = channel;
+            this.next = size;
+        }
+
+        // Maps a new window once the current one is full
+        private void ensure() throws IOException {
+            if (window != null && window.hasRemaining()) return;
+            if (window != null) position += window.capacity();
+            long size = Math.min(WINDOW, Math.max(next, GROW));
+            window = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+            next = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensure();
+            window.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ensure();
+                int n = Math.min(len, window.remaining());
+                window.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            long written = window == null ? 0 : position + window.position();
+            window = null;
+            channel.truncate(written);
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/******************************************************************************
+ *  Compilation:  javac ParallelCompressor.java
+ *  Execution:    java BitmapCompressor - 8 parallel < input.bin   (compress)
+ *  Execution:    java BitmapCompressor + < input.bin              (expand)
+ *  Dependencies: BinaryIn.java BinaryOut.java BitmapCompressor.java RunCodec.java
+ *
+ *  Compresses and expands a bitmap on every core by cutting it into
+ *  fixed-size chunks that are coded as independent blocks.
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ *  The {@code ParallelCompressor} class provides static methods for the
+ *  block-parallel variant of the {@link BitmapCompressor} format.
+ *  <p>
+ *  The input is cut into chunks of {@link #CHUNK_BYTES} bytes and each
+ *  chunk is compressed on its own, as a complete stream in the original
+ *  format, so no run crosses a chunk boundary and the blocks can be coded
+ *  in any order. The stream is the 8-bit {@link #TAG}, then the blocks in
+ *  input order, each behind its 32-bit size in bytes, and then a size of 0.
+ *  No block is empty, so the 0 can only mean the end.
+ *  <p>
+ *  A chunk whose block would be no smaller than the chunk, as with noise,
+ *  is stored as it is instead. The top bit of its size marks it, and the
+ *  decoder copies it straight to the output.
+ *  <p>
+ *  Chunks are handed to a {@link ForkJoinPool} a window at a time and their
+ *  results written in input order as soon as the window is done, so the
+ *  output is the same for any number of threads and only one window of
+ *  chunks is ever held, by the encoder or the decoder, however long the
+ *  bitmap is.
+ *
+ *  @author Kieran Pichai
+ */
+public class ParallelCompressor {
+    /**
+     * Leading byte of a block-parallel stream. Never a legal codec id, so
+     * {@link BitmapCompressor#expand(BinaryIn, BinaryOut)} can tell the formats apart.
+     */
+    public static final int TAG = 0x82;
+
+    /**
+     * Size of the input chunk coded as one block, in bytes.
+     */
+    public static final int CHUNK_BYTES = 1 << 20;
+
+    // Blocks in flight per thread, enough to keep every thread busy while results are written in order
+    private static final int WINDOW_PER_THREAD = 4;
+
+    // Top bit of a block size, set when the block is a chunk stored as it is
+    private static final int RAW = 1 << 31;
+
+    // Largest coded block: a chunk of 1-bit runs in 32-bit codes, the costliest a codec can be. Streams written
+    // before stored chunks existed can hold blocks larger than their chunk, so that alone isn't the limit
+    private static final long MAX_BLOCK_BYTES = BitmapCompressor.maxCompressedSize(8L * CHUNK_BYTES, RunCodec.fixed(32));
+
+    // don't instantiate
+    private ParallelCompressor() { }
+
+    /**
+     * Reads a bitmap from {@code in}, compresses its chunks on the common
+     * {@link ForkJoinPool}, and writes the results to {@code out}. The output
+     * is flushed but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @param codec the code to write run lengths with
+     */
+    public static void compress(InputStream in, BinaryOut out, RunCodec codec) {
+        compress(in, out, codec, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Reads a bitmap from {@code in}, compresses its chunks on the given pool,
+     * and writes the results to {@code out}. The output is flushed but neither
+     * stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @param codec the code to write run lengths with
+     * @param pool the threads to compress the chunks on
+     */
+    public static void compress(InputStream in, BinaryOut out, RunCodec codec, ForkJoinPool pool) {
+        out.write(TAG, 8);
+        int window = WINDOW_PER_THREAD * pool.getParallelism();
+        List<ForkJoinTask<Block>> tasks = new ArrayList<>(window);
+        while (true) {
+            byte[] chunk = readChunk(in);
+            boolean last = chunk.length < CHUNK_BYTES;
+            if (chunk.length > 0) tasks.add(pool.submit(() -> compressChunk(chunk, codec)));
+            if (tasks.size() == window || last) {
+                // Each size goes just before its block, so the window can be written and dropped now
+                for (ForkJoinTask<Block> task : tasks) {
+                    Block block = task.join();
+                    out.write(block.raw ? RAW | block.bytes.length : block.bytes.length);
+                    out.write(block.bytes, 0, block.bytes.length);
+                }
+                tasks.clear();
+            }
+            if (last) break;
+        }
+        out.write(0);
+        out.flush();
+    }
+
+    // The bytes written for one chunk, and whether they are the chunk itself
+    private static final class Block {
+        private final byte[] bytes;
+        private final boolean raw;
+
+        Block(byte[] bytes, boolean raw) {
+            this.bytes = bytes;
+            this.raw = raw;
+        }
+    }
+
+    // Reads up to CHUNK_BYTES bytes, fewer only at the end of the input
+    private static byte[] readChunk(InputStream in) {
+        try {
+            return in.readNBytes(CHUNK_BYTES);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not read input stream", e);
+        }
+    }
+
+    // Compresses one chunk as a complete stream in the original format, or keeps the chunk if that is smaller
+    private static Block compressChunk(byte[] chunk, RunCodec codec) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryOut out = new BinaryOut(bytes);
+        BitmapCompressor.compress(new BinaryIn(new ByteArrayInputStream(chunk)), out, codec);
+        if (bytes.size() >= chunk.length) return new Block(chunk, true);
+        return new Block(bytes.toByteArray(), false);
+    }
+
+    /**
+     * Reads the blocks of a block-parallel stream whose
+     * {@link #TAG} has already been read from {@code in}, expands the blocks
+     * on the common {@link ForkJoinPool}, and writes the results to {@code out}
+     * in order.
+     *
+     * @param in the compressed bitmap, positioned just after the tag
+     * @param out where to write the expanded bitmap
+     * @throws IllegalArgumentException if a block is larger than any chunk
+     *         can be, or isn't in the original format
+     */
+    public static void expandBlocks(BinaryIn in, BinaryOut out) {
+        expandBlocks(in, out, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Reads the blocks of a block-parallel stream whose
+     * {@link #TAG} has already been read from {@code in}, expands the blocks
+     * on the given pool, and writes the results to {@code out} in order.
+     *
+     * @param in the compressed bitmap, positioned just after the tag
+     * @param out where to write the expanded bitmap
+     * @param pool the threads to expand the blocks on
+     * @throws IllegalArgumentException if a block is larger than any chunk
+     *         can be, or isn't in the original format
+     */
+    public static void expandBlocks(BinaryIn in, BinaryOut out, ForkJoinPool pool) {
+        int window = WINDOW_PER_THREAD * pool.getParallelism();
+        List<byte[]> raw = new ArrayList<>(window);                 // stored chunks, null for those being expanded
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(window); // expansions, null for stored chunks
+        while (true) {
+            int size = in.readInt();
+            if (size != 0) {
+                // A stored chunk is already the output, so it needs no task
+                boolean stored = (size & RAW) != 0;
+                int length = size & ~RAW;
+                if (length > (stored ? CHUNK_BYTES : MAX_BLOCK_BYTES)) {
+                    throw new IllegalArgumentException("Illegal " + (stored ? "stored" : "coded") + " block size = " + length);
+                }
+                byte[] block = new byte[length];
+                in.readBytes(block, 0, block.length);
+                raw.add(stored ? block : null);
+                tasks.add(stored ? null : pool.submit(() -> expandBlock(block)));
+            }
+            if (tasks.size() == window || size == 0) {
+                for (int i = 0; i < tasks.size(); i++) {
+                    byte[] bits = tasks.get(i) == null ? raw.get(i) : tasks.get(i).join();
+                    out.write(bits, 0, bits.length);
+                }
+                raw.clear();
+                tasks.clear();
+            }
+            if (size == 0) break;
+        }
+    }
+
+    // Expands one block, a complete stream in the original format
+    private static byte[] expandBlock(byte[] block) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(CHUNK_BYTES);
+        BinaryOut out = new BinaryOut(bytes);
+        BitmapCompressor.decodeOriginal(new BinaryIn(new ByteArrayInputStream(block)), out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
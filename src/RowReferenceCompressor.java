@@ -0,0 +1,326 @@
+/******************************************************************************
+ *  Compilation:  javac RowReferenceCompressor.java
+ *  Execution:    java BitmapCompressor - 2d 32 < q32x48.bin   (compress, 32 pixels per row)
+ *  Execution:    java BitmapCompressor + < input.bin          (expand)
+ *  Dependencies: BinaryIn.java BinaryOut.java RunScanner.java RunCodec.java HuffmanCodec.java
+ *  Data files:   q32x48.bin
+ *                q64x96.bin
+ *
+ *  Two-dimensional coding of a bitmap of known width: each row's colour
+ *  changes are coded relative to the row above, in the style of CCITT
+ *  Group 4 (pass, vertical and horizontal modes).
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ *  The {@code RowReferenceCompressor} class provides static methods for
+ *  compressing a bitmap row by row against the row above it.
+ *  <p>
+ *  A changing element is a pixel whose colour differs from the pixel to its
+ *  left; each row starts after an imaginary white pixel. Coding walks along
+ *  the row with a0 (the last coded position) and finds a1, a2 (the next two
+ *  changing elements on the row) and b1, b2 (the first changing element on
+ *  the row above that is right of a0 and changes to the opposite of a0's
+ *  colour, and the one after it). Then, as in T.6:
+ *  <ul>
+ *  <li>pass mode ({@code 0001}) if b2 is left of a1, and a0 moves to b2;
+ *  <li>vertical mode if a1 is within 3 pixels of b1, one code of 1 to 7
+ *      bits for the offset ({@code 1} for a1 directly below b1), and a0 moves to a1;
+ *  <li>horizontal mode ({@code 001}) otherwise, followed by the runs a0a1
+ *      and a1a2 written with a {@link RunCodec}, and a0 moves to a2.
+ *  </ul>
+ *  Vertically aligned edges, the common case in scanned documents, cost a
+ *  single bit. Only the colour changes of two rows are kept in memory.
+ *  <p>
+ *  The stream is the 8-bit {@link #TAG}, the 32-bit row width, the header of
+ *  the codec used for horizontal mode, and then the rows. Every full row is
+ *  preceded by a 1 bit; a 0 bit is followed by the 32-bit width of a final
+ *  partial row (0 if there is none) and that row.
+ *
+ *  @author Kieran Pichai
+ */
+public class RowReferenceCompressor {
+    /**
+     * Leading byte of a row-reference stream. Never a legal codec id, so
+     * {@link BitmapCompressor#expand(BinaryIn, BinaryOut)} can tell the formats apart.
+     */
+    public static final int TAG = 0x81;
+
+    // Mode codes, as (code, length): vertical offsets -3 to 3, then pass and horizontal
+    private static final int[][] VERTICAL = {
+        { 0b0000010, 7 }, { 0b000010, 6 }, { 0b010, 3 }, { 0b1, 1 }, { 0b011, 3 }, { 0b000011, 6 }, { 0b0000011, 7 }
+    };
+    private static final int PASS = 0b0001, PASS_BITS = 4;
+    private static final int HORIZONTAL = 0b001, HORIZONTAL_BITS = 3;
+
+    private static final int MODE_BITS = 7;                     // longest mode code
+    private static final int PASS_MODE = 8, HORIZONTAL_MODE = 9;
+
+    // Changing elements the decoder first makes room for in each row
+    private static final int INITIAL_CHANGES = 1024;
+    // Indexed by the next MODE_BITS bits: mode << 3 | code length, where modes 1 to 7 are vertical offsets -3 to 3
+    private static final int[] MODES = new int[1 << MODE_BITS];
+    static {
+        for (int d = 0; d < VERTICAL.length; d++) fillMode(d + 1, VERTICAL[d][0], VERTICAL[d][1]);
+        fillMode(PASS_MODE, PASS, PASS_BITS);
+        fillMode(HORIZONTAL_MODE, HORIZONTAL, HORIZONTAL_BITS);
+    }
+
+    private static void fillMode(int mode, int code, int bits) {
+        int first = code << (MODE_BITS - bits);
+        for (int i = 0; i < 1 << (MODE_BITS - bits); i++) {
+            MODES[first + i] = mode << 3 | bits;
+        }
+    }
+
+    // don't instantiate
+    private RowReferenceCompressor() { }
+
+    /**
+     * Reads a bitmap with the given row width from {@code in}, compresses each
+     * row against the one above it, and writes the results to {@code out}.
+     * Horizontal-mode runs use the built-in fax Huffman codes. The output is
+     * flushed but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @param width the number of pixels in each row
+     */
+    public static void compress(BinaryIn in, BinaryOut out, int width) {
+        compress(in, out, width, HuffmanCodec.fax());
+    }
+
+    /**
+     * Reads a bitmap with the given row width from {@code in}, compresses each
+     * row against the one above it, and writes the results to {@code out}.
+     * The output is flushed but neither stream is closed.
+     *
+     * @param in the bitmap to compress
+     * @param out where to write the compressed bitmap
+     * @param width the number of pixels in each row
+     * @param codec the code for the runs of horizontal mode; must not depend
+     *        on the runs, so a fixed width, Golomb-Rice or the fax tables
+     * @throws IllegalArgumentException unless {@code width >= 1}
+     */
+    public static void compress(BinaryIn in, BinaryOut out, int width, RunCodec codec) {
+        if (width < 1) throw new IllegalArgumentException("Illegal row width = " + width);
+        out.write(TAG, 8);
+        out.write(width);
+        codec.writeHeader(out);
+        RowEncoder encoder = new RowEncoder(out, width, codec);
+        RunScanner scanner = new RunScanner(encoder);
+        scanner.scan(in);
+        scanner.finish();
+        encoder.finish();
+        out.flush();
+    }
+
+    // Splits the runs of the bitmap into rows and codes each full row as soon as it ends
+    private static final class RowEncoder implements RunScanner.Sink {
+        private final BinaryOut out;
+        private final int width;
+        private final RunCodec codec;
+        private int[] ref;          // changing elements of the row above, then three copies of width
+        private int[] cur;          // changing elements of this row so far
+        private int size;           // number of changing elements in cur
+        private int pos;            // pixels of this row seen so far
+        private boolean colour;     // colour of the last pixel seen in this row
+        private boolean black;      // colour of the run being added
+
+        RowEncoder(BinaryOut out, int width, RunCodec codec) {
+            this.out = out;
+            this.width = width;
+            this.codec = codec;
+            // The row above the first row is all white
+            ref = new int[width + 3];
+            addSentinels(ref, 0, width);
+            cur = new int[width + 3];
+        }
+
+        @Override
+        public void run(long length) {
+            while (length > 0) {
+                if (black != colour) {
+                    cur[size++] = pos;
+                    colour = black;
+                }
+                int k = (int) Math.min(length, width - pos);
+                pos += k;
+                length -= k;
+                if (pos == width) {
+                    out.write(true);
+                    endRow(width);
+                }
+            }
+            black = !black;
+        }
+
+        // Codes the final partial row, if any, after the end marker
+        void finish() {
+            out.write(false);
+            out.write(pos);
+            if (pos > 0) endRow(pos);
+        }
+
+        private void endRow(int rowWidth) {
+            addSentinels(cur, size, rowWidth);
+            codeRow(out, cur, ref, rowWidth, codec);
+            int[] t = ref;
+            ref = cur;
+            cur = t;
+            size = 0;
+            pos = 0;
+            colour = false;
+        }
+    }
+
+    // Ends a list of changing elements with three copies of the row width, so a1, a2, b1 and b2 always exist
+    private static void addSentinels(int[] row, int size, int width) {
+        row[size] = width;
+        row[size + 1] = width;
+        row[size + 2] = width;
+    }
+
+    // Codes one row, given its changing elements and those of the row above, each ending as addSentinels() leaves them
+    private static void codeRow(BinaryOut out, int[] cur, int[] ref, int width, RunCodec codec) {
+        int a0 = -1;
+        boolean colour = false;
+        int i = 0;      // index in cur of a1
+        int j = 0;      // index in ref of b1
+        while (a0 < width) {
+            while (cur[i] <= a0) i++;
+            int a1 = Math.min(cur[i], width);
+            j = nextB1(ref, j, a0, colour);
+            int b1 = Math.min(ref[j], width);
+            int b2 = Math.min(ref[j + 1], width);
+            if (b2 < a1) {
+                out.writeBits(PASS, PASS_BITS);
+                a0 = b2;
+            }
+            else if (Math.abs(a1 - b1) <= 3) {
+                int[] mode = VERTICAL[a1 - b1 + 3];
+                out.writeBits(mode[0], mode[1]);
+                a0 = a1;
+                colour = !colour;
+            }
+            else {
+                int a2 = Math.min(cur[i + 1], width);
+                out.writeBits(HORIZONTAL, HORIZONTAL_BITS);
+                writeRun(out, codec, a1 - Math.max(a0, 0), colour);
+                writeRun(out, codec, a2 - a1, !colour);
+                a0 = a2;
+            }
+        }
+    }
+
+    // Index of b1: the first changing element of the row above right of a0 that changes to the opposite of colour.
+    // Searching from one before the last b1 is enough, since vertical mode can move a0 left of it by at most 3
+    private static int nextB1(int[] ref, int j, int a0, boolean colour) {
+        if (j > 0) j--;
+        // Elements at even indexes change to black, at odd indexes back to white
+        while (ref[j] <= a0 || ((j & 1) == 0) == colour) j++;
+        return j;
+    }
+
+    // Writes a run as codes of maxLength followed by one shorter code, so the end is never ambiguous
+    private static void writeRun(BinaryOut out, RunCodec codec, int length, boolean black) {
+        int maxLength = codec.maxLength();
+        while (length >= maxLength) {
+            codec.writeCode(out, maxLength, black);
+            length -= maxLength;
+        }
+        codec.writeCode(out, length, black);
+    }
+
+    private static int readRun(BinaryIn in, RunCodec codec, boolean black) {
+        int maxLength = codec.maxLength();
+        int length = 0;
+        int code;
+        do {
+            code = codec.readCode(in, black);
+            length += code;
+        } while (code == maxLength);
+        return length;
+    }
+
+    /**
+     * Reads the rows of a row-reference stream whose {@link #TAG} has already
+     * been read from {@code in}, decodes them, and writes the results to
+     * {@code out}. Each row is written as soon as it is decoded.
+     *
+     * @param in the compressed bitmap, positioned just after the tag
+     * @param out where to write the expanded bitmap
+     * @throws IllegalArgumentException if a row width is illegal or a row
+     *         can't be decoded
+     */
+    public static void expandRows(BinaryIn in, BinaryOut out) {
+        int width = in.readInt();
+        if (width < 1 || width > Integer.MAX_VALUE - 3) throw new IllegalArgumentException("Illegal row width = " + width);
+        RunCodec codec = RunCodec.readHeader(in.readInt(8), in);
+        // The header's width can't be trusted with an allocation, so the lists grow with the changes actually read
+        int[] ref = new int[Math.min(width, INITIAL_CHANGES) + 3];
+        int[] cur = new int[ref.length];
+        addSentinels(ref, 0, width);
+        while (true) {
+            int rowWidth = width;
+            if (!in.readBoolean()) {
+                rowWidth = in.readInt();
+                if (rowWidth == 0) return;
+                if (rowWidth < 0 || rowWidth > width) throw new IllegalArgumentException("Illegal final row width = " + rowWidth);
+            }
+            cur = decodeRow(in, out, cur, ref, rowWidth, codec);
+            if (rowWidth < width) return;
+            int[] t = ref;
+            ref = cur;
+            cur = t;
+        }
+    }
+
+    // Decodes one row into its changing elements, writing its pixels as it goes, and returns them, grown if need be
+    private static int[] decodeRow(BinaryIn in, BinaryOut out, int[] cur, int[] ref, int width, RunCodec codec) {
+        int a0 = -1;
+        boolean colour = false;
+        int size = 0;
+        int j = 0;
+        while (a0 < width) {
+            j = nextB1(ref, j, a0, colour);
+            int b1 = Math.min(ref[j], width);
+            int b2 = Math.min(ref[j + 1], width);
+            int start = Math.max(a0, 0);
+            int entry = MODES[in.peekBits(MODE_BITS)];
+            if (entry == 0) throw new IllegalArgumentException("Invalid mode code");
+            in.skipBits(entry & 7);
+            int mode = entry >>> 3;
+            // Room for the two changes a mode can add and the sentinels; a row has at most width changes
+            if (size + 5 > cur.length) cur = Arrays.copyOf(cur, (int) Math.min(2L * cur.length, width + 3L));
+            if (mode == PASS_MODE) {
+                out.writeRepeated(colour, b2 - start);
+                a0 = b2;
+            }
+            else if (mode == HORIZONTAL_MODE) {
+                int a1 = start + readRun(in, codec, colour);
+                int a2 = a1 + readRun(in, codec, !colour);
+                if (a2 > width) throw new IllegalArgumentException("Run past the end of the row");
+                // Changes only move right, so a row never has more of them than pixels
+                if (a1 <= a0 || a2 == a1 && a1 < width) throw new IllegalArgumentException("Empty run inside the row");
+                out.writeRepeated(colour, a1 - start);
+                out.writeRepeated(!colour, a2 - a1);
+                if (a1 < width) cur[size++] = a1;
+                if (a2 < width) cur[size++] = a2;
+                a0 = a2;
+            }
+            else {
+                int a1 = b1 + mode - 4;
+                if (a1 <= a0 || a1 > width) throw new IllegalArgumentException("Vertical mode outside the rest of the row");
+                out.writeRepeated(colour, a1 - start);
+                if (a1 < width) cur[size++] = a1;
+                a0 = a1;
+                colour = !colour;
+            }
+        }
+        addSentinels(cur, size, width);
+        return cur;
+    }
+}
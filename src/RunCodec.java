@@ -0,0 +1,275 @@
+/******************************************************************************
+ *  Compilation:  javac RunCodec.java
+ *  Execution:    none (library class)
+ *  Dependencies: BinaryIn.java BinaryOut.java
+ *
+ *  The codes used to write run lengths: fixed-width codes as in the
+ *  original format, and Elias-gamma / exponential Golomb-Rice codes.
+ *
+ ******************************************************************************/
+
+/**
+ *  The {@code RunCodec} class turns run lengths into codes and back.
+ *  <p>
+ *  Every compressed stream starts with the codec's 8-bit id, followed by
+ *  any parameters of the codec. An id from 1 to 32 is the code width of the
+ *  original fixed-width format, so streams written before codecs existed
+ *  still decode. {@link #GOLOMB} {@code + k} selects an exponential
+ *  Golomb-Rice code with parameter <em>k</em>; {@code k = 0} is the
+ *  Elias-gamma code. These cost about {@code 2 log2(run)} bits for any run,
+ *  so short runs are cheap and long runs never need {@code maxLength, 0}
+ *  escape pairs. {@link HuffmanCodec#HUFFMAN} selects Huffman codes with
+ *  separate tables for runs of 0s and runs of 1s.
+ *  <p>
+ *  A run longer than {@link #maxLength()} is written as {@code maxLength, 0}
+ *  pairs followed by the rest; {@link #writeRun(BinaryOut, long, boolean)} and
+ *  {@link #codes(long)} take care of that for every codec.
+ *
+ *  @author Kieran Pichai
+ */
+public abstract class RunCodec {
+    /**
+     * Id of the exponential Golomb-Rice code with parameter 0 (Elias-gamma).
+     * Ids {@code GOLOMB + k} for {@code 0 <= k <= MAX_K} select parameter <em>k</em>.
+     */
+    public static final int GOLOMB = 0x40;
+
+    /**
+     * Largest Golomb-Rice parameter.
+     */
+    public static final int MAX_K = 24;
+
+    // Codecs hold nothing but their parameters, so one of each is shared rather than one made per stream
+    private static final RunCodec[] FIXED = new RunCodec[33];
+    private static final RunCodec[] GOLOMB_CODECS = new RunCodec[MAX_K + 1];   // decoding tables, built on first use
+
+    static {
+        for (int width = 1; width <= 32; width++) FIXED[width] = new FixedWidth(width);
+    }
+
+    /**
+     * Returns the longest run a single code can hold.
+     * @return the largest run length that fits in one code
+     */
+    public abstract int maxLength();
+
+    /**
+     * Returns the number of bits in the code for the given run length.
+     * @param code a run length between 0 and {@code maxLength()}
+     * @param black true for a run of 1s, false for a run of 0s
+     * @return the size of its code in bits
+     */
+    public abstract int codeBits(int code, boolean black);
+
+    /**
+     * Writes one code.
+     * @param out where to write the code
+     * @param code a run length between 0 and {@code maxLength()}
+     * @param black true for a run of 1s, false for a run of 0s
+     */
+    public abstract void writeCode(BinaryOut out, int code, boolean black);
+
+    /**
+     * Reads one code.
+     * @param in where to read the code from
+     * @param black true for a run of 1s, false for a run of 0s
+     * @return the run length it holds
+     */
+    public abstract int readCode(BinaryIn in, boolean black);
+
+    /**
+     * Writes the 8-bit id of this codec and any parameters it needs.
+     * @param out where to write the header
+     */
+    public abstract void writeHeader(BinaryOut out);
+
+    /**
+     * Tells whether every run length from 0 to {@code maxLength()} has a code.
+     * Only Huffman tables fitted to one bitmap leave lengths out, those that
+     * never occurred in it, so runs of another bitmap may need a codec of their own.
+     * @return true if any runs can be written with this codec
+     */
+    public boolean codesEveryLength() {
+        return true;
+    }
+
+    /**
+     * Returns the number of codes needed for a run, counting escape pairs.
+     * @param length the run length
+     * @return the number of codes {@link #writeRun(BinaryOut, long, boolean)} writes for it
+     */
+    public long codes(long length) {
+        if (length <= maxLength()) return 1;
+        return 1 + 2 * ((length - 1) / maxLength());
+    }
+
+    /**
+     * Returns the number of bits needed for a run, counting escape pairs.
+     * @param length the run length
+     * @param black true for a run of 1s, false for a run of 0s
+     * @return the number of bits {@link #writeRun(BinaryOut, long, boolean)} writes for it
+     */
+    public long runBits(long length, boolean black) {
+        if (length <= maxLength()) return codeBits((int) length, black);
+        long pairs = (length - 1) / maxLength();
+        long pairBits = codeBits(maxLength(), black) + codeBits(0, !black);
+        return pairs * pairBits + codeBits((int) (length - pairs * maxLength()), black);
+    }
+
+    /**
+     * Writes a run of any length, splitting it into {@code maxLength, 0} pairs if needed.
+     * The 0 in each pair is an empty run of the other colour.
+     * @param out where to write the codes
+     * @param length the run length
+     * @param black true for a run of 1s, false for a run of 0s
+     */
+    public void writeRun(BinaryOut out, long length, boolean black) {
+        int maxLength = maxLength();
+        while (length > maxLength) {
+            writeCode(out, maxLength, black);
+            writeCode(out, 0, !black);
+            length -= maxLength;
+        }
+        writeCode(out, (int) length, black);
+    }
+
+    /**
+     * Returns the codec of the original format with codes of the given width.
+     * @param width the code width in bits
+     * @return the fixed-width codec
+     * @throws IllegalArgumentException unless {@code 1 <= width <= 32}
+     */
+    public static RunCodec fixed(int width) {
+        if (width < 1 || width > 32) throw new IllegalArgumentException("Illegal code width = " + width);
+        return FIXED[width];
+    }
+
+    /**
+     * Returns the exponential Golomb-Rice codec with parameter <em>k</em>.
+     * @param k the number of low bits of each run written verbatim
+     * @return the Golomb-Rice codec, Elias-gamma if {@code k == 0}
+     * @throws IllegalArgumentException unless {@code 0 <= k <= MAX_K}
+     */
+    public static RunCodec golomb(int k) {
+        if (k < 0 || k > MAX_K) throw new IllegalArgumentException("Illegal Golomb-Rice parameter = " + k);
+        RunCodec codec = GOLOMB_CODECS[k];
+        // Two threads may both build one; either copy will do, and its final fields make it safe to share
+        if (codec == null) GOLOMB_CODECS[k] = codec = new ExpGolomb(k);
+        return codec;
+    }
+
+    /**
+     * Reads the parameters of the codec with the given id, which has already been read.
+     * @param id the 8-bit codec id at the start of the stream
+     * @param in the stream, positioned just after the id
+     * @return the codec the stream was written with
+     * @throws IllegalArgumentException if {@code id} is not a known codec
+     */
+    public static RunCodec readHeader(int id, BinaryIn in) {
+        if (id >= 1 && id <= 32)                 return fixed(id);
+        if (id >= GOLOMB && id <= GOLOMB + MAX_K) return golomb(id - GOLOMB);
+        if (id == HuffmanCodec.HUFFMAN)          return HuffmanCodec.readTables(in);
+        throw new IllegalArgumentException("Unknown codec " + id);
+    }
+
+    // Codes of the original format, every run written in the same number of bits
+    private static final class FixedWidth extends RunCodec {
+        private final int width;
+        private final int maxLength;
+
+        FixedWidth(int width) {
+            if (width < 1 || width > 32) throw new IllegalArgumentException("Illegal code width = " + width);
+            this.width = width;
+            this.maxLength = RunHistogram.maxLength(width);
+        }
+
+        @Override
+        public int maxLength() {
+            return maxLength;
+        }
+
+        @Override
+        public int codeBits(int code, boolean black) {
+            return width;
+        }
+
+        @Override
+        public void writeHeader(BinaryOut out) {
+            out.write(width, 8);
+        }
+
+        @Override
+        public void writeCode(BinaryOut out, int code, boolean black) {
+            out.write(code, width);
+        }
+
+        @Override
+        public int readCode(BinaryIn in, boolean black) {
+            return in.readInt(width);
+        }
+    }
+
+    // Exponential Golomb-Rice codes: m = code + 2^k is written as (bits(m) - k - 1) 0s and then m itself
+    private static final class ExpGolomb extends RunCodec {
+        private static final int TABLE_BITS = 12;   // codes this short are decoded with one lookup
+
+        private final int k;
+        // Indexed by the next TABLE_BITS bits: code length << 16 | run length, or 0 if the code is longer
+        private final int[] table = new int[1 << TABLE_BITS];
+
+        ExpGolomb(int k) {
+            if (k < 0 || k > MAX_K) throw new IllegalArgumentException("Illegal Golomb-Rice parameter = " + k);
+            this.k = k;
+            for (int code = 0; codeBits(code, false) <= TABLE_BITS; code++) {
+                int bits = codeBits(code, false);
+                int first = (code + (1 << k)) << (TABLE_BITS - bits);
+                for (int i = 0; i < 1 << (TABLE_BITS - bits); i++) {
+                    table[first + i] = bits << 16 | code;
+                }
+            }
+        }
+
+        @Override
+        public int maxLength() {
+            return Integer.MAX_VALUE - (1 << k);
+        }
+
+        @Override
+        public void writeHeader(BinaryOut out) {
+            out.write(GOLOMB + k, 8);
+        }
+
+        @Override
+        public int codeBits(int code, boolean black) {
+            int bits = 64 - Long.numberOfLeadingZeros(code + (1L << k));
+            return 2 * bits - k - 1;
+        }
+
+        @Override
+        public void writeCode(BinaryOut out, int code, boolean black) {
+            // Leading 0s come for free from writing m in more bits than it needs
+            out.writeBits(code + (1L << k), codeBits(code, false));
+        }
+
+        @Override
+        public int readCode(BinaryIn in, boolean black) {
+            // Fast path, the whole code is in the next TABLE_BITS bits
+            int entry = table[in.peekBits(TABLE_BITS)];
+            if (entry != 0) {
+                in.skipBits(entry >>> 16);
+                return entry & 0xffff;
+            }
+            // Otherwise count the leading 0s, then read m
+            int zeros = 0;
+            while (in.peekBits(8) == 0) {
+                in.skipBits(8);
+                zeros += 8;
+            }
+            int rest = Integer.numberOfLeadingZeros(in.peekBits(8)) - 24;
+            in.skipBits(rest);
+            zeros += rest;
+            long m = in.readInt(zeros + k + 1) & 0xffffffffL;
+            return (int) (m - (1L << k));
+        }
+    }
+}
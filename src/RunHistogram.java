@@ -0,0 +1,192 @@
+/******************************************************************************
+ *  Compilation:  javac RunHistogram.java
+ *  Execution:    none (library class)
+ *  Dependencies: RunScanner.java RunCodec.java
+ *
+ *  Counts how often each run length occurs, so the cost of encoding the
+ *  runs with any code width can be computed without seeing them again.
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ *  The {@code RunHistogram} class keeps an exact histogram of run lengths.
+ *  Lengths below {@code 2^16} are counted in a primitive array; the rare
+ *  longer runs are kept individually, so every query is exact.
+ *  <p>
+ *  With a code width of <em>w</em> a run can hold at most
+ *  {@code maxLength = 2^w - 1} bits, and a longer run is split into
+ *  {@code maxLength, 0} pairs, so a run of length <em>L &gt; 0</em> costs
+ *  {@code 1 + 2 * ((L - 1) / maxLength)} codes and an empty run costs one.
+ *
+ *  @author Kieran Pichai
+ */
+public class RunHistogram implements RunScanner.Sink {
+    private static final int SMALL = 1 << 16;   // lengths below this are counted in counts[]
+
+    private final long[] counts = new long[SMALL];
+    private long[] large = new long[16];        // lengths of the runs that don't fit in counts[]
+    private int numLarge;
+    private int maxSmall = -1;                  // longest length counted in counts[], or -1 if none
+    private long runs;                          // total number of runs
+    private long bits;                          // total length of all runs
+
+    /**
+     * Adds one run to the histogram.
+     * @param length the length of the run
+     */
+    @Override
+    public void run(long length) {
+        if (length < SMALL) {
+            counts[(int) length]++;
+            maxSmall = Math.max(maxSmall, (int) length);
+        }
+        else {
+            if (numLarge == large.length) large = Arrays.copyOf(large, 2 * numLarge);
+            large[numLarge++] = length;
+        }
+        runs++;
+        bits += length;
+    }
+
+    /**
+     * Empties the histogram so it can be filled again, zeroing only the
+     * counts up to the longest run added rather than the whole array.
+     */
+    public void clear() {
+        Arrays.fill(counts, 0, maxSmall + 1, 0);
+        maxSmall = -1;
+        numLarge = 0;
+        runs = 0;
+        bits = 0;
+    }
+
+    /**
+     * Returns the number of runs added.
+     * @return the number of runs added
+     */
+    public long runs() {
+        return runs;
+    }
+
+    /**
+     * Returns the total length of all runs added, the size of the bitmap in bits.
+     * @return the sum of all run lengths
+     */
+    public long bits() {
+        return bits;
+    }
+
+    /**
+     * Returns the run length at the given percentile: the shortest length
+     * that at least a fraction {@code p} of the runs are no longer than.
+     * @param p the fraction of runs, between 0 and 1
+     * @return the run length at that percentile, or 0 if there are no runs
+     * @throws IllegalArgumentException unless {@code 0 <= p <= 1}
+     */
+    public long percentile(double p) {
+        if (!(p >= 0 && p <= 1)) throw new IllegalArgumentException("Illegal percentile = " + p);
+        long target = Math.max(1, (long) Math.ceil(p * runs));
+        long seen = 0;
+        for (int length = 0; length <= maxSmall; length++) {
+            seen += counts[length];
+            if (seen >= target) return length;
+        }
+        if (numLarge == 0) return 0;
+        long[] sorted = Arrays.copyOf(large, numLarge);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(target - seen, numLarge) - 1];
+    }
+
+    /**
+     * Returns the longest run a single code of the given width can hold.
+     * Matches the {@code maxLength} used by the encoders, including for widths 31 and 32.
+     * @param width the code width in bits
+     * @return the largest run length that fits in one code
+     */
+    public static int maxLength(int width) {
+        return (int)Math.pow(2, width) - 1;
+    }
+
+    /**
+     * Returns the number of codes needed to encode every run with codes of
+     * the given width, counting the {@code maxLength, 0} pairs of long runs.
+     * @param width the code width in bits
+     * @return the number of codes
+     */
+    public long codes(int width) {
+        long maxLength = maxLength(width);
+        long codes = runs;
+        int top = (int) Math.min(SMALL - 1, maxLength);
+        for (int length = top + 1; length < SMALL; length++) {
+            codes += 2 * counts[length] * ((length - 1) / maxLength);
+        }
+        for (int i = 0; i < numLarge; i++) {
+            codes += 2 * ((large[i] - 1) / maxLength);
+        }
+        return codes;
+    }
+
+    /**
+     * Returns the exact size in bits of the codes for every run at the given width.
+     * @param width the code width in bits
+     * @return {@code width * codes(width)}
+     */
+    public long cost(int width) {
+        return width * codes(width);
+    }
+
+    /**
+     * Returns the exact size in bits of the codes for every run with the given codec,
+     * which must give runs of both colours the same codes.
+     * @param codec the codec to price
+     * @return the total number of bits its codes take, not counting any header
+     */
+    public long cost(RunCodec codec) {
+        long cost = 0;
+        for (int length = 0; length < SMALL; length++) {
+            if (counts[length] != 0) cost += counts[length] * codec.runBits(length, false);
+        }
+        for (int i = 0; i < numLarge; i++) {
+            cost += codec.runBits(large[i], false);
+        }
+        return cost;
+    }
+
+    /**
+     * Returns the exponential Golomb-Rice codec that encodes the runs in the fewest bits.
+     * @return the cheapest Golomb-Rice codec
+     */
+    public RunCodec bestGolomb() {
+        RunCodec best = RunCodec.golomb(0);
+        long bestCost = cost(best);
+        for (int k = 1; k <= RunCodec.MAX_K; k++) {
+            RunCodec codec = RunCodec.golomb(k);
+            long cost = cost(codec);
+            if (cost < bestCost) {
+                best = codec;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the code width between 1 and 31 that encodes the runs in the fewest bits.
+     * Ties go to the narrower width.
+     * @return the cheapest code width
+     */
+    public int bestWidth() {
+        int best = 1;
+        long bestCost = cost(1);
+        for (int width = 2; width <= 31; width++) {
+            long cost = cost(width);
+            if (cost < bestCost) {
+                best = width;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+}
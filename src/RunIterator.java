@@ -0,0 +1,142 @@
+/******************************************************************************
+ *  Compilation:  javac RunIterator.java
+ *  Execution:    java RunIterator < compressed.bin | head
+ *  Dependencies: BinaryIn.java RunCodec.java AppendableCompressor.java ImageCompressor.java
+ *
+ *  Steps through the runs of a compressed bitmap one at a time, decoding
+ *  codes only as the caller asks for the next run.
+ *
+ ******************************************************************************/
+
+/**
+ *  The {@code RunIterator} class reads the runs of a bitmap compressed in
+ *  the original {@link BitmapCompressor} format, or in the appendable or
+ *  image formats, which hold the same stream behind their headers, without
+ *  expanding anything. Each call to {@link #next()} decodes just enough codes for
+ *  one run, and {@link #isBlack()}, {@link #length()} and {@link #start()}
+ *  describe it as plain primitives, so stepping through a bitmap allocates
+ *  nothing per run.
+ *  <p>
+ *  The runs are those of the bitmap, not of the codes: empty runs are
+ *  skipped and the {@code maxLength, 0} escape pairs of a long run are
+ *  joined back into one run, so colours strictly alternate. To tell where
+ *  a run ends, the iterator reads one code past it, which is also how
+ *  {@link #hasNext()} knows whether another run follows.
+ *
+ *  @author Kieran Pichai
+ */
+public final class RunIterator {
+    private final BinaryIn in;
+    private final RunCodec codec;
+    private final int numRepeatCodes;
+    private int index;                  // number of codes read
+    private boolean pending;            // has a code been read that isn't part of a run yet?
+    private boolean pendingBlack;       // colour of that code
+    private long pendingLength;         // run length of that code
+    private boolean black;              // colour of the current run
+    private long length;                // length of the current run
+    private long start;                 // offset of the current run in the bitmap
+    private long end;                   // offset just past the current run
+
+    /**
+     * Reads the header of a compressed bitmap, positioned before the first run.
+     *
+     * @param in the compressed bitmap, from its first bit
+     * @throws IllegalArgumentException if the stream is not in the original,
+     *         appendable or image format
+     */
+    public RunIterator(BinaryIn in) {
+        this.in = in;
+        int id = in.readInt(8);
+        if (id == AppendableCompressor.TAG) id = in.readInt(8);
+        if (id == ImageCompressor.TAG) {
+            // The width and height come before the stream
+            in.skipBits(64);
+            id = in.readInt(8);
+        }
+        this.codec = RunCodec.readHeader(id, in);
+        this.numRepeatCodes = in.readInt();
+    }
+
+    /**
+     * Moves to the next run, decoding its codes.
+     * @return true if there is another run, false at the end of the bitmap
+     */
+    public boolean next() {
+        // Empty runs, such as a bitmap's first run of 0s when it starts with a 1, are no runs at all
+        do {
+            if (!pending && !readCode()) return false;
+            pending = false;
+        } while (pendingLength == 0);
+        black = pendingBlack;
+        length = pendingLength;
+        // Codes of the same colour, with only empty runs between, belong to the same run
+        while (readCode()) {
+            if (pendingLength == 0) continue;
+            if (pendingBlack != black) break;
+            length += pendingLength;
+        }
+        start = end;
+        end += length;
+        return true;
+    }
+
+    // Reads the next code as the pending one, returning false if there are no more
+    private boolean readCode() {
+        if (index == numRepeatCodes) {
+            pending = false;
+            return false;
+        }
+        pendingBlack = (index & 1) == 1;
+        pendingLength = codec.readCode(in, pendingBlack);
+        index++;
+        pending = true;
+        return true;
+    }
+
+    /**
+     * Tells whether there is a run after the current one, which is already
+     * known from the code read past it.
+     * @return true if {@link #next()} would find another run
+     */
+    public boolean hasNext() {
+        return pending;
+    }
+
+    /**
+     * Returns the colour of the current run.
+     * @return true for a run of 1s, false for a run of 0s
+     */
+    public boolean isBlack() {
+        return black;
+    }
+
+    /**
+     * Returns the length of the current run.
+     * @return the number of bits in the current run, at least 1
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns where the current run starts.
+     * @return the offset in the bitmap of the first bit of the current run
+     */
+    public long start() {
+        return start;
+    }
+
+    /**
+     * Prints each run of a compressed bitmap on standard input, as its
+     * offset, length and colour, stopping as soon as standard output is closed.
+     *
+     * @param args the command-line arguments (none)
+     */
+    public static void main(String[] args) {
+        RunIterator runs = new RunIterator(new BinaryIn(System.in));
+        while (runs.next() && !System.out.checkError()) {
+            System.out.println(runs.start() + " " + runs.length() + " " + (runs.isBlack() ? 1 : 0));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/******************************************************************************
+ *  Compilation:  javac RunList.java
+ *  Execution:    none (library class)
+ *  Dependencies: RunScanner.java
+ *
+ *  A growable list of run lengths kept in a primitive array.
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ *  The {@code RunList} class stores run lengths in a {@code long[]} that
+ *  doubles as it fills, so keeping every run of a bitmap costs 8 bytes per
+ *  run and no boxing.
+ *
+ *  @author Kieran Pichai
+ */
+public class RunList implements RunScanner.Sink {
+    private long[] lengths = new long[1024];
+    private int size;
+
+    /**
+     * Appends a run to the list.
+     * @param length the length of the run
+     */
+    @Override
+    public void run(long length) {
+        if (size == lengths.length) lengths = Arrays.copyOf(lengths, 2 * size);
+        lengths[size++] = length;
+    }
+
+    /**
+     * Returns the number of runs in the list.
+     * @return the number of runs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the length of the run at the given position.
+     * @param i the position of the run, starting at 0
+     * @return the length of run {@code i}
+     * @throws IndexOutOfBoundsException unless {@code 0 <= i < size()}
+     */
+    public long get(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Run " + i + " of " + size);
+        return lengths[i];
+    }
+}
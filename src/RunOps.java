@@ -0,0 +1,288 @@
+/******************************************************************************
+ *  Compilation:  javac RunOps.java
+ *  Execution:    java RunOps and a.bin b.bin > c.bin   (also or, xor)
+ *  Execution:    java RunOps not a.bin > c.bin
+ *  Execution:    java RunOps count a.bin
+ *  Execution:    java RunOps next a.bin 1000
+ *  Dependencies: BinaryIn.java BinaryOut.java RunCodec.java HuffmanCodec.java RunList.java BitmapCompressor.java
+ *
+ *  Boolean operations and queries on compressed bitmaps that work on their
+ *  runs directly, never expanding them into bits.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ *  The {@code RunOps} class provides static methods for combining and
+ *  querying bitmaps compressed in the original {@link BitmapCompressor}
+ *  format without expanding them.
+ *  <p>
+ *  Two bitmaps are merged by walking both run lists at once: each step
+ *  takes the shorter of the two current runs, so the result is known for
+ *  that many bits at once, and adjacent pieces of the same colour are
+ *  joined back into one run. The work is proportional to the number of runs
+ *  in the inputs, not the number of bits, as in run-based bitmap indexes
+ *  such as EWAH. The result is written in the same format, with the codec
+ *  of the first input, unless that codec is Huffman tables fitted to the
+ *  input, which may have no codes for the result's run lengths; then the
+ *  tables are fitted again to the result, as {@code compressHuffman()}
+ *  would fit them. The codec to write with can also be given explicitly.
+ *  <p>
+ *  Bitmaps of different lengths are combined as if the shorter one were
+ *  padded with 0s, so the result is as long as the longer input.
+ *
+ *  @author Kieran Pichai
+ */
+public class RunOps {
+    // Combines a bit of each input into a bit of the result
+    private interface Combiner {
+        boolean apply(boolean a, boolean b);
+    }
+
+    // don't instantiate
+    private RunOps() { }
+
+    /**
+     * Writes the bitwise AND of two compressed bitmaps to {@code out}.
+     * @param a the first compressed bitmap
+     * @param b the second compressed bitmap
+     * @param out where to write the compressed result
+     */
+    public static void and(BinaryIn a, BinaryIn b, BinaryOut out) {
+        merge(new Cursor(a), new Cursor(b), out, null, (x, y) -> x & y);
+    }
+
+    /**
+     * Writes the bitwise AND of two compressed bitmaps to {@code out} with the given codec.
+     * @param a the first compressed bitmap
+     * @param b the second compressed bitmap
+     * @param out where to write the compressed result
+     * @param codec the codec to write the result with
+     * @throws IllegalArgumentException if {@code codec} has no code for one of the result's runs
+     */
+    public static void and(BinaryIn a, BinaryIn b, BinaryOut out, RunCodec codec) {
+        merge(new Cursor(a), new Cursor(b), out, codec, (x, y) -> x & y);
+    }
+
+    /**
+     * Writes the bitwise OR of two compressed bitmaps to {@code out}.
+     * @param a the first compressed bitmap
+     * @param b the second compressed bitmap
+     * @param out where to write the compressed result
+     */
+    public static void or(BinaryIn a, BinaryIn b, BinaryOut out) {
+        merge(new Cursor(a), new Cursor(b), out, null, (x, y) -> x | y);
+    }
+
+    /**
+     * Writes the bitwise OR of two compressed bitmaps to {@code out} with the given codec.
+     * @param a the first compressed bitmap
+     * @param b the second compressed bitmap
+     * @param out where to write the compressed result
+     * @param codec the codec to write the result with
+     * @throws IllegalArgumentException if {@code codec} has no code for one of the result's runs
+     */
+    public static void or(BinaryIn a, BinaryIn b, BinaryOut out, RunCodec codec) {
+        merge(new Cursor(a), new Cursor(b), out, codec, (x, y) -> x | y);
+    }
+
+    /**
+     * Writes the bitwise XOR of two compressed bitmaps to {@code out}.
+     * @param a the first compressed bitmap
+     * @param b the second compressed bitmap
+     * @param out where to write the compressed result
+     */
+    public static void xor(BinaryIn a, BinaryIn b, BinaryOut out) {
+        merge(new Cursor(a), new Cursor(b), out, null, (x, y) -> x ^ y);
+    }
+
+    /**
+     * Writes the bitwise XOR of two compressed bitmaps to {@code out} with the given codec.
+     * @param a the first compressed bitmap
+     * @param b the second compressed bitmap
+     * @param out where to write the compressed result
+     * @param codec the codec to write the result with
+     * @throws IllegalArgumentException if {@code codec} has no code for one of the result's runs
+     */
+    public static void xor(BinaryIn a, BinaryIn b, BinaryOut out, RunCodec codec) {
+        merge(new Cursor(a), new Cursor(b), out, codec, (x, y) -> x ^ y);
+    }
+
+    /**
+     * Writes the bitwise complement of a compressed bitmap to {@code out},
+     * keeping its length.
+     * @param a the compressed bitmap
+     * @param out where to write the compressed result
+     */
+    public static void not(BinaryIn a, BinaryOut out) {
+        not(new Cursor(a), out, null);
+    }
+
+    /**
+     * Writes the bitwise complement of a compressed bitmap to {@code out}
+     * with the given codec, keeping its length.
+     * @param a the compressed bitmap
+     * @param out where to write the compressed result
+     * @param codec the codec to write the result with
+     * @throws IllegalArgumentException if {@code codec} has no code for one of the result's runs
+     */
+    public static void not(BinaryIn a, BinaryOut out, RunCodec codec) {
+        not(new Cursor(a), out, codec);
+    }
+
+    // Writes the complement run by run; null codec means the input's
+    private static void not(Cursor cursor, BinaryOut out, RunCodec codec) {
+        RunBuilder result = new RunBuilder();
+        while (cursor.next()) {
+            result.add(!cursor.colour, cursor.remaining);
+            cursor.remaining = 0;
+        }
+        write(out, result.finish(), codec, cursor.codec);
+    }
+
+    // Walks both inputs a piece at a time, where a piece ends at the first run end in either input
+    private static void merge(Cursor a, Cursor b, BinaryOut out, RunCodec codec, Combiner combiner) {
+        RunBuilder result = new RunBuilder();
+        while (true) {
+            boolean hasA = a.next();
+            boolean hasB = b.next();
+            if (!hasA && !hasB) break;
+            long length;
+            if      (!hasA) length = b.remaining;
+            else if (!hasB) length = a.remaining;
+            else            length = Math.min(a.remaining, b.remaining);
+            // An input that has ended counts as 0s
+            result.add(combiner.apply(hasA && a.colour, hasB && b.colour), length);
+            if (hasA) a.remaining -= length;
+            if (hasB) b.remaining -= length;
+        }
+        write(out, result.finish(), codec, a.codec);
+    }
+
+    // Writes the result with the given codec, or else with the input's, refitted if it can't code every length
+    private static void write(BinaryOut out, RunList runs, RunCodec codec, RunCodec input) {
+        if (codec == null) codec = input.codesEveryLength() ? input : HuffmanCodec.fit(runs);
+        BitmapCompressor.writeRuns(out, runs, codec);
+    }
+
+    /**
+     * Returns the number of 1s in a compressed bitmap, adding up its runs of 1s.
+     * @param in the compressed bitmap
+     * @return the number of set bits
+     */
+    public static long cardinality(BinaryIn in) {
+        Cursor cursor = new Cursor(in);
+        long count = 0;
+        while (cursor.next()) {
+            if (cursor.colour) count += cursor.remaining;
+            cursor.remaining = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the offset of the first 1 at or after {@code from} in a
+     * compressed bitmap, skipping whole runs until it is found.
+     * @param in the compressed bitmap
+     * @param from the offset to start looking at
+     * @return the offset of the next set bit, or -1 if there is none
+     * @throws IllegalArgumentException if {@code from} is negative
+     */
+    public static long nextSetBit(BinaryIn in, long from) {
+        if (from < 0) throw new IllegalArgumentException("Illegal offset = " + from);
+        Cursor cursor = new Cursor(in);
+        long offset = 0;
+        while (cursor.next()) {
+            long end = offset + cursor.remaining;
+            if (cursor.colour && end > from) return Math.max(offset, from);
+            offset = end;
+            cursor.remaining = 0;
+        }
+        return -1;
+    }
+
+    // Reads the runs of a compressed bitmap one at a time, skipping the empty runs of escape pairs
+    private static final class Cursor {
+        private final BinaryIn in;
+        private final RunCodec codec;
+        private final int numRepeatCodes;
+        private int index;              // number of codes read
+        private boolean colour;         // colour of the current run
+        private long remaining;         // bits of the current run not yet used
+
+        Cursor(BinaryIn in) {
+            this.in = in;
+            this.codec = RunCodec.readHeader(in.readInt(8), in);
+            this.numRepeatCodes = in.readInt();
+        }
+
+        // Moves to the next nonempty run once the current one is used up, returning false at the end
+        boolean next() {
+            while (remaining == 0) {
+                if (index == numRepeatCodes) return false;
+                colour = (index & 1) == 1;
+                remaining = codec.readCode(in, colour);
+                index++;
+            }
+            return true;
+        }
+    }
+
+    // Joins pieces of the result into alternating runs that start with 0s
+    private static final class RunBuilder {
+        private final RunList runs = new RunList();
+        private boolean colour;     // colour of the run being built
+        private long length;        // length of the run being built
+
+        void add(boolean bit, long n) {
+            if (n == 0) return;
+            if (bit != colour) {
+                runs.run(length);
+                colour = bit;
+                length = 0;
+            }
+            length += n;
+        }
+
+        RunList finish() {
+            runs.run(length);
+            return runs;
+        }
+    }
+
+    /**
+     * Runs an operation on compressed files given on the command line and
+     * writes the compressed result, or the answer to a query, to standard output.
+     *
+     * @param args the operation and its files; see the header
+     * @throws IOException if a file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        String operation = args[0];
+        try (InputStream a = Files.newInputStream(Paths.get(args[1]))) {
+            if (operation.equals("count")) {
+                System.out.println(cardinality(new BinaryIn(a)));
+                return;
+            }
+            if (operation.equals("next")) {
+                System.out.println(nextSetBit(new BinaryIn(a), Long.parseLong(args[2])));
+                return;
+            }
+            BinaryOut out = new BinaryOut(System.out);
+            if (operation.equals("not")) not(new BinaryIn(a), out);
+            else {
+                try (InputStream b = Files.newInputStream(Paths.get(args[2]))) {
+                    if      (operation.equals("and")) and(new BinaryIn(a), new BinaryIn(b), out);
+                    else if (operation.equals("or"))  or(new BinaryIn(a), new BinaryIn(b), out);
+                    else if (operation.equals("xor")) xor(new BinaryIn(a), new BinaryIn(b), out);
+                    else throw new IllegalArgumentException("Illegal command line argument");
+                }
+            }
+            out.close();
+        }
+    }
+}
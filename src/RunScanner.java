@@ -0,0 +1,137 @@
+/******************************************************************************
+ *  Compilation:  javac RunScanner.java
+ *  Execution:    none (library class)
+ *  Dependencies: BinaryIn.java
+ *
+ *  Splits a stream of bits, fed in 64 bits at a time, into alternating
+ *  runs of 0s and 1s.
+ *
+ ******************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ *  The {@code RunScanner} class measures the runs of equal bits in a bit
+ *  stream that is handed to it as 64-bit words (most significant bit first).
+ *  Instead of testing one bit at a time, each word is XORed with the colour
+ *  of the current run and {@link Long#numberOfLeadingZeros(long)} gives the
+ *  length of the rest of the run inside that word, so a word that contains
+ *  no transition costs a single operation.
+ *  <p>
+ *  Runs are reported to a {@link Sink} in the order they occur, alternating
+ *  between 0s and 1s and starting with a (possibly empty) run of 0s, which
+ *  is the convention used by {@link BitmapCompressor}.
+ *
+ *  @author Kieran Pichai
+ */
+public final class RunScanner {
+    /**
+     * Receives the runs found by a {@code RunScanner}.
+     */
+    public interface Sink {
+        /**
+         * Called once per run, in order.
+         * @param length the number of equal bits in the run
+         */
+        void run(long length);
+    }
+
+    private final Sink sink;
+    private boolean bit;    // colour of the run being measured
+    private long count;     // length of the run being measured so far
+
+    /**
+     * Initializes a scanner that reports runs to the given sink.
+     * @param sink the sink to report runs to
+     */
+    public RunScanner(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Scans the leading {@code bits} bits of {@code word}.
+     * @param word the bits to scan, most significant bit first
+     * @param bits the number of valid bits at the top of {@code word}
+     * @throws IllegalArgumentException unless {@code 0 <= bits <= 64}
+     */
+    public void scan(long word, int bits) {
+        if (bits < 0 || bits > 64) throw new IllegalArgumentException("Illegal number of bits = " + bits);
+        while (bits > 0) {
+            // Set bits mark positions that differ from the colour of the current run
+            long diff = bit ? ~word : word;
+            if (bits < 64) diff &= -1L << (64 - bits);
+            int same = Long.numberOfLeadingZeros(diff);
+            if (same >= bits) {
+                count += bits;
+                return;
+            }
+            // Run ends inside this word, report it and continue with the other colour
+            count += same;
+            sink.run(count);
+            count = 0;
+            bit = !bit;
+            word <<= same;
+            bits -= same;
+        }
+    }
+
+    /**
+     * Scans every remaining bit of {@code in}, a 64-bit word at a time.
+     * Does not call {@code finish()}.
+     * @param in the bits to scan
+     */
+    public void scan(BinaryIn in) {
+        while (in.hasBits(64)) scan(in.readLong(), 64);
+        // Fewer than 64 bits are left, read a byte at a time
+        long word = 0;
+        int bits = 0;
+        while (!in.isEmpty()) {
+            word |= (long) in.readChar() << (56 - bits);
+            bits += 8;
+        }
+        scan(word, bits);
+    }
+
+    /**
+     * Scans every remaining byte of {@code buffer}, a 64-bit word at a time,
+     * reading words straight out of the buffer in big-endian order, whatever
+     * order the buffer is set to. Does not call {@code finish()}.
+     * @param buffer the bits to scan, such as a mapped region of a file
+     */
+    public void scan(ByteBuffer buffer) {
+        scan(buffer, 8L * buffer.remaining());
+    }
+
+    /**
+     * Scans the first {@code bits} bits of {@code buffer} from its position,
+     * a 64-bit word at a time, in big-endian order whatever order the buffer
+     * is set to, and moves its position past the last byte it read from.
+     * Does not call {@code finish()}.
+     * @param buffer the bits to scan
+     * @param bits the number of bits to scan
+     * @throws IllegalArgumentException unless {@code 0 <= bits <= 8 * buffer.remaining()}
+     */
+    public void scan(ByteBuffer buffer, long bits) {
+        if (bits < 0 || bits > 8L * buffer.remaining()) throw new IllegalArgumentException("Illegal number of bits = " + bits);
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        for (; bits >= 64; bits -= 64) scan(buffer.getLong(), 64);
+        buffer.order(order);
+        long word = 0;
+        for (int read = 0; read < bits; read += 8) {
+            word |= (buffer.get() & 0xffL) << (56 - read);
+        }
+        scan(word, (int) bits);
+    }
+
+    /**
+     * Reports the final run. Must be called once after the last call to {@code scan()}.
+     * The final run is empty only if no bits were scanned at all.
+     */
+    public void finish() {
+        sink.run(count);
+        count = 0;
+        bit = false;
+    }
+}
@@ -0,0 +1,284 @@
+/******************************************************************************
+ *  Compilation:  javac SeekIndex.java
+ *  Execution:    java SeekIndex build compressed.bin compressed.idx 65536
+ *  Execution:    java SeekIndex range compressed.bin compressed.idx 8000 16000 > part.bin
+ *  Execution:    java SeekIndex rows compressed.bin compressed.idx 1728 100 110 > rows.bin
+ *  Dependencies: BinaryIn.java BinaryOut.java RunCodec.java
+ *
+ *  An index of points in a compressed bitmap at which decoding can start,
+ *  so a range of bits or rows can be expanded without decoding everything
+ *  before it.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ *  The {@code SeekIndex} class records, at regular intervals through a
+ *  bitmap compressed in the original {@link BitmapCompressor} format, the
+ *  offset in bits of a code in the original bitmap, the offset in bits of
+ *  that code in the compressed stream, and how many codes come before it.
+ *  The colour of the run a code holds follows from that count, since runs
+ *  alternate starting with 0s.
+ *  <p>
+ *  To expand the bits {@code [startBit, endBit)}, the decoder seeks to the
+ *  last index point at or before {@code startBit}, decodes from there and
+ *  stops at {@code endBit}, so a partial read costs the index interval plus
+ *  the requested range instead of the whole file.
+ *  <p>
+ *  The index is kept apart from the compressed stream, so any existing
+ *  stream can be indexed and streams without an index are unchanged. It is
+ *  written as the 64-bit interval, the 64-bit size of the bitmap in bits,
+ *  the 32-bit number of points, and then each point as a 64-bit original
+ *  offset, a 64-bit compressed offset and a 32-bit code count.
+ *
+ *  @author Kieran Pichai
+ */
+public final class SeekIndex {
+    private final long interval;
+    private final long bits;            // size of the original bitmap
+    private final int size;             // number of points
+    private final long[] original;      // offset of each point in the original bitmap
+    private final long[] compressed;    // offset of each point in the compressed stream
+    private final int[] codes;          // number of codes before each point
+
+    private SeekIndex(long interval, long bits, int size, long[] original, long[] compressed, int[] codes) {
+        this.interval = interval;
+        this.bits = bits;
+        this.size = size;
+        this.original = original;
+        this.compressed = compressed;
+        this.codes = codes;
+    }
+
+    /**
+     * Builds the index of a compressed bitmap by reading its codes once,
+     * without writing any of the bits they stand for.
+     *
+     * @param in the compressed bitmap, in the original format, from its first bit
+     * @param interval the number of original bits between index points
+     * @return the index
+     * @throws IllegalArgumentException unless {@code interval >= 1}, or if the
+     *         stream isn't in the original format
+     */
+    public static SeekIndex build(BinaryIn in, long interval) {
+        if (interval < 1) throw new IllegalArgumentException("Illegal index interval = " + interval);
+        RunCodec codec = readHeader(in);
+        int numRepeatCodes = in.readInt();
+        long[] original = new long[16];
+        long[] compressed = new long[16];
+        int[] codes = new int[16];
+        int size = 0;
+        long offset = 0;
+        long next = 0;      // original offset at which the next point is due
+        for (int i = 0; i < numRepeatCodes; i++) {
+            if (offset >= next) {
+                if (size == original.length) {
+                    original = Arrays.copyOf(original, 2 * size);
+                    compressed = Arrays.copyOf(compressed, 2 * size);
+                    codes = Arrays.copyOf(codes, 2 * size);
+                }
+                original[size] = offset;
+                compressed[size] = in.position();
+                codes[size] = i;
+                size++;
+                // A run may cover several intervals; the next point goes in the first interval it doesn't
+                next = offset - offset % interval + interval;
+            }
+            offset += codec.readCode(in, (i & 1) == 1);
+        }
+        return new SeekIndex(interval, offset, size, original, compressed, codes);
+    }
+
+    // Reads the codec of a stream in the original format
+    private static RunCodec readHeader(BinaryIn in) {
+        int id = in.readInt(8);
+        if (id == FramedCompressor.TAG || id == ParallelCompressor.TAG || id == RowReferenceCompressor.TAG
+                || id == AppendableCompressor.TAG || id == TiledCompressor.TAG
+                || id == ImageCompressor.TAG) {
+            throw new IllegalArgumentException("Only streams in the original format can be indexed");
+        }
+        return RunCodec.readHeader(id, in);
+    }
+
+    /**
+     * Returns the number of original bits between index points.
+     * @return the index interval
+     */
+    public long interval() {
+        return interval;
+    }
+
+    /**
+     * Returns the size of the original bitmap.
+     * @return the number of bits the compressed bitmap expands to
+     */
+    public long bits() {
+        return bits;
+    }
+
+    /**
+     * Returns the number of index points.
+     * @return the number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    // Index of the last point at or before the given original offset
+    private int floor(long bit) {
+        int lo = 0, hi = size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (original[mid] <= bit) lo = mid;
+            else                      hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Writes the index.
+     * @param out where to write the index
+     */
+    public void write(BinaryOut out) {
+        out.write(interval);
+        out.write(bits);
+        out.write(size);
+        for (int i = 0; i < size; i++) {
+            out.write(original[i]);
+            out.write(compressed[i]);
+            out.write(codes[i]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads an index written by {@link #write(BinaryOut)}.
+     * @param in the index
+     * @return the index
+     */
+    public static SeekIndex read(BinaryIn in) {
+        long interval = in.readLong();
+        long bits = in.readLong();
+        int size = in.readInt();
+        long[] original = new long[size];
+        long[] compressed = new long[size];
+        int[] codes = new int[size];
+        for (int i = 0; i < size; i++) {
+            original[i] = in.readLong();
+            compressed[i] = in.readLong();
+            codes[i] = in.readInt();
+        }
+        return new SeekIndex(interval, bits, size, original, compressed, codes);
+    }
+
+    /**
+     * Expands the bits {@code [startBit, endBit)} of a compressed file,
+     * seeking straight to the nearest index point before {@code startBit},
+     * and writes them to {@code out}. The output is flushed but not closed.
+     *
+     * @param file the compressed bitmap this index was built from
+     * @param startBit the offset of the first bit to expand
+     * @param endBit the offset just past the last bit to expand
+     * @param out where to write the expanded bits
+     * @throws IllegalArgumentException unless {@code 0 <= startBit <= endBit <= bits()}
+     * @throws IllegalStateException if the file can't be read
+     */
+    public void expand(Path file, long startBit, long endBit, BinaryOut out) {
+        if (startBit < 0 || startBit > endBit || endBit > bits) {
+            throw new IllegalArgumentException("Illegal range [" + startBit + ", " + endBit + ") of " + bits + " bits");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The codec and code count come from the start of the stream, before seeking
+            BinaryIn header = new BinaryIn(Channels.newInputStream(channel));
+            RunCodec codec = readHeader(header);
+            int numRepeatCodes = header.readInt();
+            if (size == 0) {
+                out.flush();
+                return;
+            }
+
+            int point = floor(startBit);
+            channel.position(compressed[point] >>> 3);
+            BinaryIn in = new BinaryIn(Channels.newInputStream(channel));
+            in.skipBits(compressed[point] & 7);
+            long offset = original[point];
+            for (int i = codes[point]; i < numRepeatCodes && offset < endBit; i++) {
+                boolean bit = (i & 1) == 1;
+                long next = offset + codec.readCode(in, bit);
+                // Only the part of the run inside the range is written
+                long from = Math.max(offset, startBit);
+                long to = Math.min(next, endBit);
+                if (to > from) out.writeRepeated(bit, to - from);
+                offset = next;
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not read " + file, e);
+        }
+    }
+
+    /**
+     * Expands rows {@code [firstRow, lastRow)} of a compressed bitmap with
+     * the given row width and writes them to {@code out}. The output is
+     * flushed but not closed.
+     *
+     * @param file the compressed bitmap this index was built from
+     * @param width the number of bits in each row
+     * @param firstRow the first row to expand
+     * @param lastRow the row just past the last row to expand
+     * @param out where to write the expanded rows
+     * @throws IllegalArgumentException if {@code firstRow} starts past the end
+     *         of the bitmap or comes after {@code lastRow}
+     */
+    public void expandRows(Path file, int width, long firstRow, long lastRow, BinaryOut out) {
+        if (width < 1) throw new IllegalArgumentException("Illegal row width = " + width);
+        // A partial last row is cut short at the end of the bitmap
+        expand(file, firstRow * width, Math.min(lastRow * width, bits), out);
+    }
+
+    /**
+     * Builds an index for a compressed file, or expands a range of bits or
+     * rows from one using its index; see the header for the arguments.
+     *
+     * @param args the command-line arguments
+     * @throws IOException if a file can't be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        Path file = Paths.get(args[1]);
+        Path indexFile = Paths.get(args[2]);
+        if (args[0].equals("build")) {
+            SeekIndex index;
+            try (InputStream is = Files.newInputStream(file)) {
+                index = build(new BinaryIn(is), Long.parseLong(args[3]));
+            }
+            try (OutputStream os = Files.newOutputStream(indexFile)) {
+                index.write(new BinaryOut(os));
+            }
+            return;
+        }
+        SeekIndex index;
+        try (InputStream is = Files.newInputStream(indexFile)) {
+            index = read(new BinaryIn(is));
+        }
+        BinaryOut out = new BinaryOut(System.out);
+        if (args[0].equals("range")) {
+            index.expand(file, Long.parseLong(args[3]), Long.parseLong(args[4]), out);
+        }
+        else if (args[0].equals("rows")) {
+            index.expandRows(file, Integer.parseInt(args[3]), Long.parseLong(args[4]), Long.parseLong(args[5]), out);
+        }
+        else throw new IllegalArgumentException("Illegal command line argument");
+        out.close();
+    }
+}
@@ -0,0 +1,324 @@
+/******************************************************************************
+ *  Compilation:  javac TileCache.java
+ *  Execution:    java TileCache compressed.bin compressed.idx 65536 64 < ranges.txt > bits.bin
+ *  Dependencies: BinaryIn.java BinaryOut.java SeekIndex.java
+ *
+ *  A bounded cache of decoded tiles of compressed bitmaps, so that regions
+ *  read again and again are copied from memory instead of decoded again.
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Scanner;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/**
+ *  The {@code TileCache} class holds decoded tiles, the expanded bits of a
+ *  piece of a bitmap packed into a {@code byte[]}, keyed by the hash of the
+ *  compressed content they came from, the size of its tiles and the number
+ *  of the tile within it. A tile number only names bits for one tile size,
+ *  so readers of one bitmap with different tile sizes never share tiles.
+ *  Keying by content rather than by file name means a file that is replaced
+ *  never serves stale tiles, and copies of one bitmap share their tiles.
+ *  <p>
+ *  The cache is split into stripes by the hash of the key, each a
+ *  {@link LinkedHashMap} in access order with its own lock and an equal
+ *  share of the memory budget, so readers of different tiles rarely wait
+ *  for each other and each stripe evicts its least recently used tiles
+ *  when a new one doesn't fit. A tile larger than a stripe's share is
+ *  decoded but not kept. A miss decodes outside the lock, so a slow decode
+ *  holds up nobody else; two readers missing the same tile at once may
+ *  both decode it, and the second copy replaces the first.
+ *  <p>
+ *  Hits, misses and evictions are counted in {@link LongAdder}s, as in
+ *  {@link CompressionMetrics}, and can be read at any time.
+ *
+ *  @author Kieran Pichai
+ */
+public final class TileCache {
+    // Bytes charged for each tile on top of its bits, for the key, the entry and the array header
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Stripe[] stripes;
+    private final long stripeBudget;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param budgetBytes the most memory the decoded tiles may take, in bytes
+     * @param numStripes the number of independently locked parts; a few per core
+     * @throws IllegalArgumentException unless {@code budgetBytes >= 1} and {@code numStripes >= 1}
+     */
+    public TileCache(long budgetBytes, int numStripes) {
+        if (budgetBytes < 1) throw new IllegalArgumentException("Illegal memory budget = " + budgetBytes);
+        if (numStripes < 1) throw new IllegalArgumentException("Illegal number of stripes = " + numStripes);
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) stripes[i] = new Stripe();
+        stripeBudget = Math.max(1, budgetBytes / numStripes);
+    }
+
+    /**
+     * Creates an empty cache with four stripes per core.
+     * @param budgetBytes the most memory the decoded tiles may take, in bytes
+     */
+    public TileCache(long budgetBytes) {
+        this(budgetBytes, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns a decoded tile, from the cache if it is there, or else from
+     * {@code decoder}, keeping the result. The array is shared with other
+     * readers and must not be changed.
+     *
+     * @param content the hash of the compressed bitmap, such as {@link #contentHash(Path)}
+     * @param tileSize the size of the tiles the bitmap is cut into, such as their number of bits
+     * @param tile the number of the tile within the bitmap
+     * @param decoder decodes the tile with the given number
+     * @return the expanded bits of the tile
+     */
+    public byte[] get(long content, long tileSize, long tile, LongFunction<byte[]> decoder) {
+        Key key = new Key(content, tileSize, tile);
+        Stripe stripe = stripes[Math.floorMod(key.hashCode(), stripes.length)];
+        byte[] bits;
+        synchronized (stripe) {
+            bits = stripe.tiles.get(key);
+        }
+        if (bits != null) {
+            hits.increment();
+            return bits;
+        }
+        misses.increment();
+        bits = decoder.apply(tile);
+        long charge = (long) bits.length + ENTRY_OVERHEAD;
+        if (charge > stripeBudget) return bits;
+        synchronized (stripe) {
+            byte[] old = stripe.tiles.put(key, bits);
+            if (old != null) stripe.bytes -= (long) old.length + ENTRY_OVERHEAD;
+            stripe.bytes += charge;
+            // The least recently used tiles come first; the new one is last and always fits
+            Iterator<byte[]> lru = stripe.tiles.values().iterator();
+            while (stripe.bytes > stripeBudget) {
+                stripe.bytes -= (long) lru.next().length + ENTRY_OVERHEAD;
+                lru.remove();
+                evictions.increment();
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Expands the bits {@code [startBit, endBit)} of a compressed file with
+     * a {@link SeekIndex}, tile by tile through the cache, and writes them to
+     * {@code out}. Tile {@code t} holds bits {@code [t * tileBits, (t + 1) * tileBits)}.
+     * The output is flushed but not closed.
+     *
+     * @param file the compressed bitmap the index was built from
+     * @param index its index
+     * @param content the hash of the compressed bitmap
+     * @param tileBits the number of bits in each tile, a multiple of 8
+     * @param startBit the offset of the first bit to expand
+     * @param endBit the offset just past the last bit to expand
+     * @param out where to write the expanded bits
+     * @throws IllegalArgumentException unless {@code tileBits} is a positive multiple
+     *         of 8 and {@code 0 <= startBit <= endBit <= index.bits()}
+     */
+    public void expand(Path file, SeekIndex index, long content, long tileBits,
+                       long startBit, long endBit, BinaryOut out) {
+        if (tileBits < 8 || (tileBits & 7) != 0) throw new IllegalArgumentException("Illegal tile size = " + tileBits);
+        if (startBit < 0 || startBit > endBit || endBit > index.bits()) {
+            throw new IllegalArgumentException("Illegal range [" + startBit + ", " + endBit + ") of " + index.bits() + " bits");
+        }
+        LongFunction<byte[]> decoder = tile -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            long from = tile * tileBits;
+            index.expand(file, from, Math.min(from + tileBits, index.bits()), new BinaryOut(bytes));
+            return bytes.toByteArray();
+        };
+        for (long tile = startBit / tileBits; tile * tileBits < endBit; tile++) {
+            long from = tile * tileBits;
+            byte[] bits = get(content, tileBits, tile, decoder);
+            copyBits(bits, Math.max(startBit, from) - from, Math.min(endBit, from + tileBits) - from, out);
+        }
+        out.flush();
+    }
+
+    // Writes bits [from, to) of a tile
+    private static void copyBits(byte[] tile, long from, long to, BinaryOut out) {
+        BinaryIn in = new BinaryIn(ByteBuffer.wrap(tile));
+        in.skipBits(from);
+        long n = to - from;
+        byte[] chunk = new byte[(int) Math.min(n >>> 3, 8192)];
+        while (n >= 8) {
+            int len = (int) Math.min(n >>> 3, chunk.length);
+            in.readBytes(chunk, 0, len);
+            out.write(chunk, 0, len);
+            n -= 8L * len;
+        }
+        if (n > 0) out.write(in.readInt((int) n), (int) n);
+    }
+
+    /**
+     * Returns a 64-bit hash of a file's content, the first 8 bytes of its
+     * SHA-256 digest, to key its tiles by. Reading the whole file, it is
+     * meant to be computed once per file, not once per read.
+     *
+     * @param file the compressed bitmap
+     * @return the hash
+     * @throws IllegalStateException if the file can't be read
+     */
+    public static long contentHash(Path file) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform must provide SHA-256
+            throw new IllegalStateException("No SHA-256", e);
+        }
+        try (InputStream is = new DigestInputStream(Files.newInputStream(file), digest)) {
+            is.transferTo(OutputStream.nullOutputStream());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not read " + file, e);
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Returns the number of reads answered from the cache.
+     * @return the number of hits
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of reads that had to decode their tile.
+     * @return the number of misses
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of tiles dropped to stay within the budget.
+     * @return the number of evictions
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the share of reads answered from the cache.
+     * @return hits over hits plus misses, or 0 before the first read
+     */
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Returns the memory the cached tiles are charged for.
+     * @return the size of the cache in bytes
+     */
+    public long bytes() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Drops every tile, keeping the counts.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.tiles.clear();
+                stripe.bytes = 0;
+            }
+        }
+    }
+
+    // One independently locked part of the cache, its tiles in least recently used order
+    private static final class Stripe {
+        private final LinkedHashMap<Key, byte[]> tiles = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+    }
+
+    // A tile of a bitmap, named by the hash of its content, the size of its tiles and its number
+    private static final class Key {
+        private final long content;
+        private final long tileSize;
+        private final long tile;
+
+        Key(long content, long tileSize, long tile) {
+            this.content = content;
+            this.tileSize = tileSize;
+            this.tile = tile;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key that = (Key) other;
+            return content == that.content && tileSize == that.tileSize && tile == that.tile;
+        }
+
+        @Override
+        public int hashCode() {
+            // Mixed so that neighbouring tiles of one bitmap land in different stripes
+            long h = (content ^ tileSize * 0xC2B2AE3D27D4EB4FL ^ tile) * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * Expands the ranges of bits read from standard input, a start and an end
+     * per line, from a compressed file and its {@link SeekIndex} through a
+     * cache with the given tile size in bits and budget in megabytes, writes
+     * them to standard output one after another, and reports the cache's
+     * counts to standard error.
+     *
+     * @param args the command-line arguments
+     * @throws IOException if the index can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        Path file = Paths.get(args[0]);
+        SeekIndex index;
+        try (InputStream is = Files.newInputStream(Paths.get(args[1]))) {
+            index = SeekIndex.read(new BinaryIn(is));
+        }
+        long tileBits = Long.parseLong(args[2]);
+        TileCache cache = new TileCache(Long.parseLong(args[3]) << 20);
+        long content = contentHash(file);
+        BinaryOut out = new BinaryOut(System.out);
+        Scanner ranges = new Scanner(System.in);
+        while (ranges.hasNextLong()) {
+            cache.expand(file, index, content, tileBits, ranges.nextLong(), ranges.nextLong(), out);
+        }
+        out.close();
+        System.err.printf("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d bytes cached%n",
+                cache.hits(), cache.misses(), 100 * cache.hitRate(), cache.evictions(), cache.bytes());
+    }
+}
@@ -0,0 +1,383 @@
+/******************************************************************************
+ *  Compilation:  javac TiledCompressor.java
+ *  Execution:    java TiledCompressor - 8 20000 30000 < scan.bin > scan.tiled        (compress, 256-pixel tiles)
+ *  Execution:    java TiledCompressor - fax 20000 30000 512 < scan.bin > scan.tiled  (512-pixel tiles)
+ *  Execution:    java TiledCompressor crop scan.tiled 4000 9000 200 200 > window.bin (expand a window)
+ *  Execution:    java BitmapCompressor + < scan.tiled > scan.bin                     (expand everything)
+ *  Dependencies: BinaryIn.java BinaryOut.java BitmapCompressor.java RunCodec.java
+ *
+ *  A two-dimensional layout that cuts an image into square tiles coded on
+ *  their own, so a window can be cropped by decoding only the tiles under it.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ *  The {@code TiledCompressor} class provides static methods for the tiled
+ *  variant of the {@link BitmapCompressor} format.
+ *  <p>
+ *  An image of known width and height, stored a row after another, is cut
+ *  into tiles of {@code tileSize} by {@code tileSize} pixels, smaller along
+ *  the right and bottom edges. Each tile's rows, one after another, are
+ *  compressed as a complete stream in the original format, padded to a
+ *  whole byte, so no run crosses a tile and any tile can be decoded alone.
+ *  The stream is the 8-bit {@link #TAG}, the 32-bit width, height and tile
+ *  size, the tiles a row of tiles at a time from the top left, and then a
+ *  directory of 64-bit offsets in bytes from the tag: one for each tile, in
+ *  the same order, and one for the end of the last tile. The directory's
+ *  size follows from the header, so it is found from the end of the file.
+ *  <p>
+ *  {@link #expandRegion} reads the header and directory, then only the
+ *  tiles a window overlaps, and decodes them at once on a
+ *  {@link ForkJoinPool}, so cropping costs the tiles under the window
+ *  whatever the size of the image. Expanding the whole image needs no
+ *  directory: the tiles are decoded in order a row of tiles at a time, so
+ *  it streams from a pipe like every other format.
+ *  <p>
+ *  Compression reads a row of tiles at a time and compresses its tiles on
+ *  a pool as well, so memory use is one row of tiles.
+ *
+ *  @author Kieran Pichai
+ */
+public class TiledCompressor {
+    /**
+     * Leading byte of a tiled stream. Never a legal codec id, so
+     * {@link BitmapCompressor#expand(BinaryIn, BinaryOut)} can tell the formats apart.
+     */
+    public static final int TAG = 0x84;
+
+    /**
+     * Width and height of a tile, in pixels, unless another is asked for.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    // Tag and three 32-bit ints
+    private static final int HEADER_BYTES = 1 + 4 + 4 + 4;
+
+    // don't instantiate
+    private TiledCompressor() { }
+
+    /**
+     * Reads an image of {@code width * height} bits from {@code in}, a row
+     * at a time, compresses it in tiles of {@link #DEFAULT_TILE_SIZE} on the
+     * common {@link ForkJoinPool}, and writes the results to {@code out}. The
+     * output is flushed but neither stream is closed.
+     *
+     * @param in the image to compress
+     * @param out where to write the compressed image
+     * @param width the number of pixels in each row
+     * @param height the number of rows
+     * @param codec the code to write run lengths with
+     */
+    public static void compress(BinaryIn in, BinaryOut out, int width, int height, RunCodec codec) {
+        compress(in, out, width, height, DEFAULT_TILE_SIZE, codec, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Reads an image of {@code width * height} bits from {@code in}, a row
+     * at a time, compresses it in tiles of the given size on the given pool,
+     * and writes the results to {@code out}. The output is flushed but
+     * neither stream is closed.
+     *
+     * @param in the image to compress
+     * @param out where to write the compressed image
+     * @param width the number of pixels in each row
+     * @param height the number of rows
+     * @param tileSize the width and height of a tile
+     * @param codec the code to write run lengths with
+     * @param pool the threads to compress the tiles on
+     * @throws IllegalArgumentException unless {@code width >= 1}, {@code height >= 0},
+     *         {@code tileSize >= 1} and a row of tiles fits in an array
+     * @throws java.util.NoSuchElementException if the image is cut short
+     */
+    public static void compress(BinaryIn in, BinaryOut out, int width, int height, int tileSize,
+                                RunCodec codec, ForkJoinPool pool) {
+        if (width < 1) throw new IllegalArgumentException("Illegal image width = " + width);
+        if (height < 0) throw new IllegalArgumentException("Illegal image height = " + height);
+        if (tileSize < 1) throw new IllegalArgumentException("Illegal tile size = " + tileSize);
+        long bandBits = (long) width * Math.min(tileSize, height);
+        if (bandBits > 8L * Integer.MAX_VALUE - 64) {
+            throw new IllegalArgumentException("A row of " + tileSize + "-pixel tiles of a " + width + "-pixel image is too large");
+        }
+        int across = tilesAlong(width, tileSize);
+        int down = tilesAlong(height, tileSize);
+        if ((long) across * down >= Integer.MAX_VALUE) throw new IllegalArgumentException("Too many tiles of " + tileSize + " pixels");
+        long[] offsets = new long[across * down + 1];
+
+        out.write(TAG, 8);
+        out.write(width);
+        out.write(height);
+        out.write(tileSize);
+        long offset = HEADER_BYTES;
+        byte[] band = new byte[(int) ((bandBits + 7) >>> 3)];
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(across);
+        for (int ty = 0; ty < down; ty++) {
+            int rows = Math.min(tileSize, height - ty * tileSize);
+            readBits(in, band, (long) rows * width);
+            for (int tx = 0; tx < across; tx++) {
+                int x = tx * tileSize;
+                int columns = Math.min(tileSize, width - x);
+                tasks.add(pool.submit(() -> compressTile(band, width, x, columns, rows, codec)));
+            }
+            for (int tx = 0; tx < across; tx++) {
+                byte[] tile = tasks.get(tx).join();
+                offsets[ty * across + tx] = offset;
+                out.write(tile, 0, tile.length);
+                offset += tile.length;
+            }
+            tasks.clear();
+        }
+        offsets[across * down] = offset;
+        for (long o : offsets) out.write(o);
+        out.flush();
+    }
+
+    // Number of tiles that cover a side
+    private static int tilesAlong(int pixels, int tileSize) {
+        return (int) (((long) pixels + tileSize - 1) / tileSize);
+    }
+
+    // Reads the given number of bits into the front of a byte array, the last byte padded with 0s
+    private static void readBits(BinaryIn in, byte[] b, long bits) {
+        int bytes = (int) (bits >>> 3);
+        in.readBytes(b, 0, bytes);
+        int rest = (int) (bits & 7);
+        if (rest > 0) b[bytes] = (byte) (in.readInt(rest) << (8 - rest));
+    }
+
+    // Compresses the tile with the given columns of a row of tiles as a complete stream in the original format
+    private static byte[] compressTile(byte[] band, int width, int x, int columns, int rows, RunCodec codec) {
+        long bits = (long) columns * rows;
+        ByteBuffer tile = ByteBuffer.allocate((int) ((bits + 7) >>> 3));
+        BinaryOut out = new BinaryOut(tile);
+        for (int row = 0; row < rows; row++) copyBits(band, (long) row * width + x, columns, out);
+        out.flush();
+        ByteBuffer compressed = ByteBuffer.allocate((int) BitmapCompressor.maxCompressedSize(bits, codec));
+        int size = BitmapCompressor.compress(tile.flip(), bits, compressed, codec);
+        byte[] bytes = new byte[size];
+        compressed.flip().get(bytes);
+        return bytes;
+    }
+
+    // Writes n bits of a byte array starting at the given bit, whole bytes at a time where it can
+    private static void copyBits(byte[] b, long from, int n, BinaryOut out) {
+        int lead = (int) Math.min(n, (8 - (from & 7)) & 7);
+        if (lead > 0) {
+            int shift = 8 - (int) (from & 7) - lead;
+            out.writeBits(b[(int) (from >>> 3)] >>> shift, lead);
+            from += lead;
+            n -= lead;
+        }
+        int bytes = n >>> 3;
+        out.write(b, (int) (from >>> 3), bytes);
+        from += 8L * bytes;
+        n -= 8 * bytes;
+        if (n > 0) out.writeBits((b[(int) (from >>> 3)] & 0xff) >>> (8 - n), n);
+    }
+
+    /**
+     * Reads the tiles of a tiled stream whose {@link #TAG} has already been
+     * read from {@code in}, a row of tiles at a time, and writes the rows of
+     * the image to {@code out}. The directory is left unread.
+     *
+     * @param in the compressed image, positioned just after the tag
+     * @param out where to write the expanded image
+     * @throws IllegalArgumentException if the header is illegal or a tile
+     *         isn't in the original format
+     */
+    public static void expandTiles(BinaryIn in, BinaryOut out) {
+        // Tiles are padded to whole bytes from the tag, wherever the tag was in the stream
+        long start = in.position() - 8;
+        int width = in.readInt();
+        int height = in.readInt();
+        int tileSize = in.readInt();
+        checkHeader(width, height, tileSize);
+        int across = tilesAlong(width, tileSize);
+        int down = tilesAlong(height, tileSize);
+        byte[][] tiles = new byte[across][];
+        for (int ty = 0; ty < down; ty++) {
+            int rows = Math.min(tileSize, height - ty * tileSize);
+            for (int tx = 0; tx < across; tx++) {
+                int columns = Math.min(tileSize, width - tx * tileSize);
+                tiles[tx] = new byte[(int) (((long) columns * rows + 7) >>> 3)];
+                BinaryOut tile = new BinaryOut(ByteBuffer.wrap(tiles[tx]));
+                BitmapCompressor.decodeOriginal(in, tile);
+                tile.flush();
+                in.skipBits((start - in.position()) & 7);
+            }
+            for (int row = 0; row < rows; row++) {
+                for (int tx = 0; tx < across; tx++) {
+                    int columns = Math.min(tileSize, width - tx * tileSize);
+                    copyBits(tiles[tx], (long) row * columns, columns, out);
+                }
+            }
+        }
+    }
+
+    // Rejects a header no compressor would write
+    private static void checkHeader(int width, int height, int tileSize) {
+        if (width < 1 || height < 0 || tileSize < 1) {
+            throw new IllegalArgumentException("Illegal tiled header: " + width + " x " + height + " in tiles of " + tileSize);
+        }
+    }
+
+    /**
+     * Expands the window of {@code w} by {@code h} pixels whose top left
+     * pixel is at column {@code x} and row {@code y} of a tiled file,
+     * decoding only the tiles it overlaps, on the common {@link ForkJoinPool},
+     * and writes its rows to {@code out}, one after another. The output is
+     * flushed but not closed.
+     *
+     * @param file the compressed image
+     * @param x the column of the left edge of the window
+     * @param y the row of the top edge of the window
+     * @param w the width of the window
+     * @param h the height of the window
+     * @param out where to write the expanded window
+     * @throws IllegalArgumentException if {@code file} isn't a tiled stream or
+     *         the window isn't inside the image
+     * @throws IllegalStateException if the file can't be read
+     */
+    public static void expandRegion(Path file, int x, int y, int w, int h, BinaryOut out) {
+        expandRegion(file, x, y, w, h, out, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Expands a window of a tiled file as {@link #expandRegion(Path, int, int, int, int, BinaryOut)}
+     * does, decoding its tiles on the given pool.
+     *
+     * @param file the compressed image
+     * @param x the column of the left edge of the window
+     * @param y the row of the top edge of the window
+     * @param w the width of the window
+     * @param h the height of the window
+     * @param out where to write the expanded window
+     * @param pool the threads to decode the tiles on
+     * @throws IllegalArgumentException if {@code file} isn't a tiled stream or
+     *         the window isn't inside the image
+     * @throws IllegalStateException if the file can't be read
+     */
+    public static void expandRegion(Path file, int x, int y, int w, int h, BinaryOut out, ForkJoinPool pool) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, HEADER_BYTES);
+            if ((header.get() & 0xff) != TAG) throw new IllegalArgumentException(file + " is not a tiled stream");
+            int width = header.getInt();
+            int height = header.getInt();
+            int tileSize = header.getInt();
+            checkHeader(width, height, tileSize);
+            if (x < 0 || y < 0 || w < 0 || h < 0 || (long) x + w > width || (long) y + h > height) {
+                throw new IllegalArgumentException("Illegal window " + w + " x " + h + " at (" + x + ", " + y
+                        + ") of a " + width + " x " + height + " image");
+            }
+            if (w == 0 || h == 0) {
+                out.flush();
+                return;
+            }
+            int across = tilesAlong(width, tileSize);
+            int down = tilesAlong(height, tileSize);
+            int firstX = x / tileSize, lastX = (x + w - 1) / tileSize;
+            int firstY = y / tileSize, lastY = (y + h - 1) / tileSize;
+
+            // Only the directory entries of the tiles under the window are read, a row of tiles at a time
+            long directory = channel.size() - 8L * (across * down + 1);
+            if (directory < HEADER_BYTES) throw new IllegalArgumentException(file + " has no tile directory");
+            int wide = lastX - firstX + 1;
+            List<ForkJoinTask<byte[]>> tasks = new ArrayList<>();
+            for (int ty = firstY; ty <= lastY; ty++) {
+                ByteBuffer entries = read(channel, directory + 8L * (ty * across + firstX), 8 * (wide + 1));
+                int rows = Math.min(tileSize, height - ty * tileSize);
+                for (int tx = firstX; tx <= lastX; tx++) {
+                    long from = entries.getLong(8 * (tx - firstX));
+                    long to = entries.getLong(8 * (tx - firstX + 1));
+                    if (from < HEADER_BYTES || to < from || to > directory || to - from > Integer.MAX_VALUE) {
+                        throw new IllegalArgumentException(file + " has a damaged tile directory");
+                    }
+                    int columns = Math.min(tileSize, width - tx * tileSize);
+                    long bits = (long) columns * rows;
+                    tasks.add(pool.submit(() -> expandTile(read(channel, from, (int) (to - from)), bits)));
+                }
+            }
+
+            // Each row of the window takes its columns from each tile it crosses, left to right
+            byte[][] tiles = new byte[wide][];
+            for (int ty = firstY; ty <= lastY; ty++) {
+                for (int i = 0; i < wide; i++) tiles[i] = tasks.get((ty - firstY) * wide + i).join();
+                int top = ty * tileSize;
+                int rows = Math.min(tileSize, height - top);
+                for (int row = Math.max(y, top); row < Math.min(y + h, top + rows); row++) {
+                    for (int tx = firstX; tx <= lastX; tx++) {
+                        int left = tx * tileSize;
+                        int columns = Math.min(tileSize, width - left);
+                        int from = Math.max(x, left);
+                        int to = Math.min(x + w, left + columns);
+                        copyBits(tiles[tx - firstX], (long) (row - top) * columns + from - left, to - from, out);
+                    }
+                }
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not read " + file, e);
+        }
+    }
+
+    // Expands one tile, a complete stream in the original format
+    private static byte[] expandTile(ByteBuffer tile, long bits) {
+        byte[] bytes = new byte[(int) ((bits + 7) >>> 3)];
+        BinaryOut out = new BinaryOut(ByteBuffer.wrap(bytes));
+        BitmapCompressor.decodeOriginal(new BinaryIn(tile), out);
+        out.flush();
+        return bytes;
+    }
+
+    // Reads the given bytes of a file without moving its position, so tiles can be read from many threads
+    private static ByteBuffer read(FileChannel channel, long offset, int length) {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        try {
+            while (b.hasRemaining()) {
+                if (channel.read(b, offset + b.position()) < 0) {
+                    throw new IllegalArgumentException("Tiled stream is cut short");
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not read tiled stream", e);
+        }
+        return b.flip();
+    }
+
+    /**
+     * Compresses standard input ("-", a code width, "gamma" or "fax" as for
+     * {@link BitmapCompressor#codec(String)}, since each tile is coded as it is
+     * reached and no codec can be fitted to the whole bitmap first, then
+     * the width, the height and optionally the tile size) or crops a window
+     * from a tiled file ("crop", the file, and the window's left column, top
+     * row, width and height) to standard output.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        BinaryOut out = new BinaryOut(System.out);
+        if (args[0].equals("-")) {
+            int tileSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_TILE_SIZE;
+            compress(new BinaryIn(System.in), out, Integer.parseInt(args[2]), Integer.parseInt(args[3]), tileSize,
+                     BitmapCompressor.codec(args[1]), ForkJoinPool.commonPool());
+        }
+        else if (args[0].equals("crop")) {
+            expandRegion(Paths.get(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                         Integer.parseInt(args[4]), Integer.parseInt(args[5]), out);
+        }
+        else throw new IllegalArgumentException("Illegal command line argument");
+        out.close();
+    }
+}
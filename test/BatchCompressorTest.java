@@ -0,0 +1,74 @@
+/******************************************************************************
+ *  Compilation:  mvn -pl core test
+ *  Dependencies: BatchCompressor.java BitmapCompressor.java BinaryIn.java BinaryOut.java
+ *
+ *  Compresses a directory in a batch and compares each output with the
+ *  file a plain compress writes.
+ *
+ ******************************************************************************/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *  Unit tests for {@link BatchCompressor}.
+ *
+ *  @author Kieran Pichai
+ */
+class BatchCompressorTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void outputsMatchPlainCompress() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path inputs = Files.createDirectory(dir.resolve("in"));
+        Random random = new Random(1);
+        for (int i = 0; i < 4; i++) {
+            byte[] bits = new byte[10_000];
+            random.nextBytes(bits);
+            Files.write(inputs.resolve("scan" + i + ".bin"), bits);
+        }
+
+        // A plain compress writes its output through an ordinary stream, with the umask's permissions
+        Path plain = dir.resolve("plain.bin");
+        try (InputStream is = Files.newInputStream(inputs.resolve("scan0.bin"));
+             OutputStream os = Files.newOutputStream(plain)) {
+            BinaryOut out = new BinaryOut(os);
+            BitmapCompressor.compress(new BinaryIn(is), out, 8);
+            out.close();
+        }
+
+        Path outputs = dir.resolve("out");
+        List<Path> files;
+        try (Stream<Path> list = Files.list(inputs)) {
+            files = list.sorted().toList();
+        }
+        List<BatchCompressor.Result> results =
+                BatchCompressor.run("8", files, outputs, 2, new PrintStream(OutputStream.nullOutputStream()));
+
+        for (BatchCompressor.Result result : results) {
+            assertNull(result.error());
+            assertEquals(Files.getPosixFilePermissions(plain), Files.getPosixFilePermissions(result.output()));
+        }
+        assertArrayEquals(Files.readAllBytes(plain), Files.readAllBytes(outputs.resolve("scan0.bin")));
+        try (Stream<Path> list = Files.list(outputs)) {
+            assertEquals(files.size(), list.count());     // no .part files left behind
+        }
+    }
+}
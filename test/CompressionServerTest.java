@@ -0,0 +1,163 @@
+/******************************************************************************
+ *  Compilation:  mvn -pl core test
+ *  Dependencies: CompressionServer.java BitmapCompressor.java BinaryIn.java BinaryOut.java
+ *
+ *  Sends compress and expand requests to a server on the loopback
+ *  interface through its own client.
+ *
+ ******************************************************************************/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *  Unit tests for {@link CompressionServer}.
+ *
+ *  @author Kieran Pichai
+ */
+class CompressionServerTest {
+    // Far larger than the socket buffers on both sides, so a client that uploads before reading would hang
+    private static final int LARGE = 32 << 20;
+
+    private CompressionServer server;
+    private String address;
+
+    @BeforeEach
+    void start() {
+        server = new CompressionServer(0, 2);
+        address = "http://localhost:" + server.port();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    void compressMatchesLocalCompress() {
+        byte[] bits = bitmap(1, 100_000);
+        ByteArrayOutputStream local = new ByteArrayOutputStream();
+        BinaryOut out = new BinaryOut(local);
+        BitmapCompressor.compress(new BinaryIn(new ByteArrayInputStream(bits)), out, 8);
+        out.close();
+        byte[] compressed = request("/compress?codec=8", bits);
+        assertArrayEquals(local.toByteArray(), compressed);
+        assertArrayEquals(bits, request("/expand", compressed));
+    }
+
+    @Test
+    void largeBodiesStreamBothWays() {
+        // Random bits barely compress, so the response is as large as the request and both are in flight at once
+        byte[] bits = new byte[LARGE];
+        new Random(2).nextBytes(bits);
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            byte[] compressed = request("/compress?codec=8&layout=framed", bits);
+            assertArrayEquals(bits, request("/expand", compressed));
+        });
+    }
+
+    @Test
+    void badRequestIsRefused() {
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> request("/compress?codec=8&layout=sideways", new byte[8]));
+        assertTrue(e.getMessage().contains("400"), e.getMessage());
+    }
+
+    @Test
+    void hostileHeadersAreAnswered() {
+        // A 2 GB block size, and tiled headers nested as each other's first tile, used to escape the handler
+        byte[] huge = { (byte) 0x82, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0 };
+        byte[] nested = new byte[200_000 * 13];
+        for (int i = 0; i < nested.length; i += 13) {
+            nested[i] = (byte) TiledCompressor.TAG;
+            nested[i + 4] = nested[i + 8] = nested[i + 12] = 1;    // width, height and tile size of 1
+        }
+        for (byte[] body : new byte[][] { huge, nested }) {
+            IllegalStateException e = assertTimeoutPreemptively(Duration.ofSeconds(30),
+                    () -> assertThrows(IllegalStateException.class, () -> request("/expand", body)));
+            assertTrue(e.getMessage().contains("Server answered"), e.getMessage());
+        }
+    }
+
+    @Test
+    void fullServerAnswers503() throws InterruptedException {
+        // Each held request takes a slot as soon as its headers arrive and keeps it until its body ends
+        CountDownLatch release = new CountDownLatch(1);
+        Thread[] held = new Thread[2];
+        for (int i = 0; i < held.length; i++) {
+            held[i] = new Thread(() -> request("/compress?codec=8", new HeldBody(release), new ByteArrayOutputStream()));
+            held[i].start();
+        }
+        try {
+            Thread.sleep(500);
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> request("/compress?codec=8", new byte[8]));
+            assertTrue(e.getMessage().contains("503"), e.getMessage());
+        }
+        finally {
+            release.countDown();
+            for (Thread thread : held) thread.join();
+        }
+    }
+
+    // Sends a request body and returns the response body
+    private byte[] request(String path, byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request(path, new ByteArrayInputStream(body), out);
+        return out.toByteArray();
+    }
+
+    private void request(String path, InputStream body, ByteArrayOutputStream out) {
+        CompressionServer.request(address, path, body, out);
+    }
+
+    // A bitmap of random runs of up to 100 bits
+    private static byte[] bitmap(long seed, int bytes) {
+        Random random = new Random(seed);
+        byte[] bits = new byte[bytes];
+        boolean black = false;
+        for (int i = 0; i < 8 * bytes; ) {
+            for (int end = Math.min(i + 1 + random.nextInt(100), 8 * bytes); i < end; i++) {
+                if (black) bits[i >>> 3] |= (byte) (0x80 >>> (i & 7));
+            }
+            black = !black;
+        }
+        return bits;
+    }
+
+    // One byte, then nothing until released, then the end of the body
+    private static final class HeldBody extends InputStream {
+        private final CountDownLatch release;
+        private boolean sent;
+
+        HeldBody(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public int read() {
+            if (!sent) {
+                sent = true;
+                return 0;
+            }
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/******************************************************************************
+ *  Compilation:  mvn -pl core test
+ *  Dependencies: ImageCompressor.java BitmapCompressor.java BinaryIn.java BinaryOut.java
+ *
+ *  Compresses BMP images and checks the PBM images they expand to.
+ *
+ ******************************************************************************/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ *  Unit tests for {@link ImageCompressor}.
+ *
+ *  @author Kieran Pichai
+ */
+class ImageCompressorTest {
+    @Test
+    void os2BmpTallerThanAShort() {
+        // Taller than 32767 rows, so a signed 16-bit height would be negative and read as top-down
+        int height = 40_000;
+        ByteBuffer bmp = ByteBuffer.allocate(14 + 12 + 2 * 3 + 4 * height).order(ByteOrder.LITTLE_ENDIAN);
+        bmp.put((byte) 'B').put((byte) 'M').putInt(bmp.capacity()).putInt(0).putInt(14 + 12 + 2 * 3);
+        bmp.putInt(12).putShort((short) 1).putShort((short) height).putShort((short) 1).putShort((short) 1);
+        bmp.put(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, 0, 0, 0 });     // white, black
+        // Rows are stored bottom-up, each padded to 4 bytes; every seventh is black
+        for (int y = 0; y < height; y++) bmp.putInt(y % 7 == 0 ? 0x80 : 0);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        BinaryOut out = new BinaryOut(compressed);
+        ImageCompressor.compress(new ByteArrayInputStream(bmp.array()), out, RunCodec.fixed(8));
+        out.close();
+        ByteArrayOutputStream pbm = new ByteArrayOutputStream();
+        ImageCompressor.expandImage(new BinaryIn(new ByteArrayInputStream(compressed.toByteArray())), pbm, "pbm");
+
+        byte[] header = ("P4\n1 " + height + "\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] expected = new byte[header.length + height];
+        System.arraycopy(header, 0, expected, 0, header.length);
+        for (int row = 0; row < height; row++) {
+            if ((height - 1 - row) % 7 == 0) expected[header.length + row] = (byte) 0x80;
+        }
+        assertArrayEquals(expected, pbm.toByteArray());
+    }
+}
@@ -0,0 +1,80 @@
+/******************************************************************************
+ *  Compilation:  mvn -pl core test
+ *  Dependencies: RowReferenceCompressor.java BitmapCompressor.java BinaryIn.java BinaryOut.java
+ *  Data files:   q32x48.bin
+ *                q64x96.bin
+ *
+ *  Compresses the sample bitmaps row by row against the row above and
+ *  expands them again.
+ *
+ ******************************************************************************/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ *  Unit tests for {@link RowReferenceCompressor}.
+ *
+ *  @author Kieran Pichai
+ */
+class RowReferenceCompressorTest {
+    // Each codec the horizontal mode can write runs with
+    static Stream<RunCodec> codecs() {
+        return Stream.of(RunCodec.fixed(1), RunCodec.fixed(8), RunCodec.golomb(0), RunCodec.golomb(3), HuffmanCodec.fax());
+    }
+
+    @ParameterizedTest
+    @MethodSource("codecs")
+    void roundTripsSampleBitmaps(RunCodec codec) throws IOException {
+        byte[] q32 = sample("q32x48.bin");
+        byte[] q64 = sample("q64x96.bin");
+        // Each at its own width, whose rows line up with the letter, and at one that leaves a partial last row
+        assertArrayEquals(q32, expand(compress(q32, 32, codec)));
+        assertArrayEquals(q32, expand(compress(q32, 30, codec)));
+        assertArrayEquals(q64, expand(compress(q64, 64, codec)));
+        assertArrayEquals(q64, expand(compress(q64, 50, codec)));
+    }
+
+    @Test
+    void illegalWidthIsRejected() {
+        byte[] negative = { (byte) 0x81, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xf0 };
+        assertThrows(IllegalArgumentException.class, () -> expand(negative));
+        byte[] zero = { (byte) 0x81, 0, 0, 0, 0, 8 };
+        assertThrows(IllegalArgumentException.class, () -> expand(zero));
+        // A huge width is legal, but nothing is allocated for it before the stream runs out
+        byte[] huge = { (byte) 0x81, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0 };
+        assertThrows(NoSuchElementException.class, () -> expand(huge));
+    }
+
+    private static byte[] sample(String name) throws IOException {
+        try (InputStream is = RowReferenceCompressorTest.class.getResourceAsStream("/" + name)) {
+            return is.readAllBytes();
+        }
+    }
+
+    private static byte[] compress(byte[] bits, int width, RunCodec codec) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOut binaryOut = new BinaryOut(out);
+        RowReferenceCompressor.compress(new BinaryIn(new ByteArrayInputStream(bits)), binaryOut, width, codec);
+        binaryOut.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] expand(byte[] compressed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOut binaryOut = new BinaryOut(out);
+        BitmapCompressor.expand(new BinaryIn(new ByteArrayInputStream(compressed)), binaryOut);
+        binaryOut.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,185 @@
+/******************************************************************************
+ *  Compilation:  mvn -pl core test
+ *  Dependencies: RunOps.java BitmapCompressor.java BinaryIn.java BinaryOut.java
+ *
+ *  Checks boolean operations and queries on compressed bitmaps against the
+ *  same operations on their expanded bits.
+ *
+ ******************************************************************************/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ *  Unit tests for {@link RunOps}.
+ *
+ *  @author Kieran Pichai
+ */
+class RunOpsTest {
+    // Two bitmaps whose runs have different lengths, so their combinations have run lengths neither has
+    private static final byte[] A = bitmap(1, 4096, 3, 40);
+    private static final byte[] B = bitmap(2, 3000, 5, 70);
+
+    // Runs of up to 2000 bits, far past the 255 an 8-bit code holds, so the fixed-width streams need escape pairs
+    private static final byte[] LONG_A = bitmap(3, 4096, 7, 2000);
+    private static final byte[] LONG_B = bitmap(4, 3000, 11, 2000);
+
+    // The bits of NEXT: 0s, 300 1s, 0s, 10 1s, then 0s to the end
+    private static final int NEXT_BITS = 2048;
+    private static final byte[] NEXT = ones(ones(new byte[NEXT_BITS / 8], 100, 400), 1000, 1010);
+
+    private enum Op {
+        AND('&'), OR('|'), XOR('^');
+
+        private final char symbol;
+
+        Op(char symbol) {
+            this.symbol = symbol;
+        }
+
+        byte[] apply(byte[] a, byte[] b) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BinaryOut binaryOut = new BinaryOut(out);
+            switch (this) {
+                case AND -> RunOps.and(in(a), in(b), binaryOut);
+                case OR  -> RunOps.or(in(a), in(b), binaryOut);
+                case XOR -> RunOps.xor(in(a), in(b), binaryOut);
+            }
+            binaryOut.close();
+            return out.toByteArray();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Op.class)
+    void combineFittedHuffmanStreams(Op op) {
+        assertArrayEquals(expected(A, B, op.symbol), expand(op.apply(huffman(A), huffman(B))));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Op.class)
+    void combineFixedWidthStreamsWithEscapes(Op op) {
+        assertArrayEquals(expected(LONG_A, LONG_B, op.symbol), expand(op.apply(fixed(LONG_A), fixed(LONG_B))));
+    }
+
+    @Test
+    void notOfFittedHuffmanStream() {
+        byte[] expected = new byte[A.length];
+        for (int i = 0; i < A.length; i++) expected[i] = (byte) ~A[i];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOut binaryOut = new BinaryOut(out);
+        RunOps.not(in(huffman(A)), binaryOut);
+        binaryOut.close();
+        assertArrayEquals(expected, expand(out.toByteArray()));
+    }
+
+    @Test
+    void explicitCodec() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOut binaryOut = new BinaryOut(out);
+        RunOps.xor(in(huffman(A)), in(huffman(B)), binaryOut, RunCodec.golomb(2));
+        binaryOut.close();
+        assertArrayEquals(expected(A, B, '^'), expand(out.toByteArray()));
+    }
+
+    @Test
+    void cardinality() {
+        for (byte[] bits : new byte[][] { A, LONG_A, NEXT }) {
+            long expected = 0;
+            for (byte b : bits) expected += Integer.bitCount(b & 0xff);
+            assertEquals(expected, RunOps.cardinality(in(huffman(bits))));
+            assertEquals(expected, RunOps.cardinality(in(fixed(bits))));
+        }
+    }
+
+    @Test
+    void nextSetBit() {
+        byte[] compressed = fixed(NEXT);
+        assertEquals(100, RunOps.nextSetBit(in(compressed), 0));        // from inside a run of 0s
+        assertEquals(100, RunOps.nextSetBit(in(compressed), 100));      // from the first bit of a run of 1s
+        assertEquals(250, RunOps.nextSetBit(in(compressed), 250));      // from inside a run of 1s
+        assertEquals(399, RunOps.nextSetBit(in(compressed), 399));      // from the last bit of a run of 1s
+        assertEquals(1000, RunOps.nextSetBit(in(compressed), 400));     // from the first bit of a run of 0s
+        assertEquals(-1, RunOps.nextSetBit(in(compressed), 1010));      // from inside the trailing 0s
+        assertEquals(-1, RunOps.nextSetBit(in(compressed), NEXT_BITS));
+        assertEquals(-1, RunOps.nextSetBit(in(compressed), 10 * NEXT_BITS));
+        assertThrows(IllegalArgumentException.class, () -> RunOps.nextSetBit(in(compressed), -1));
+    }
+
+    @Test
+    void nextSetBitMatchesExpandedBits() {
+        byte[] compressed = huffman(A);
+        long next = -1;
+        for (int i = 8 * A.length - 1; i >= 0; i--) {
+            if ((A[i >>> 3] & (0x80 >>> (i & 7))) != 0) next = i;
+            assertEquals(next, RunOps.nextSetBit(in(compressed), i), "from " + i);
+        }
+    }
+
+    // A bitmap of random runs of 1 to maxRun bits, with only a few lengths in use per colour
+    private static byte[] bitmap(long seed, int bytes, int step, int maxRun) {
+        Random random = new Random(seed);
+        byte[] bits = new byte[bytes];
+        boolean black = false;
+        for (int i = 0; i < 8 * bytes; ) {
+            int run = step * (1 + random.nextInt(maxRun / step));
+            for (int end = Math.min(i + run, 8 * bytes); i < end; i++) {
+                if (black) bits[i >>> 3] |= (byte) (0x80 >>> (i & 7));
+            }
+            black = !black;
+        }
+        return bits;
+    }
+
+    private static byte[] expected(byte[] a, byte[] b, char op) {
+        byte[] result = new byte[Math.max(a.length, b.length)];
+        for (int i = 0; i < result.length; i++) {
+            int x = i < a.length ? a[i] : 0;
+            int y = i < b.length ? b[i] : 0;
+            result[i] = (byte) (op == '&' ? x & y : op == '|' ? x | y : x ^ y);
+        }
+        return result;
+    }
+
+    // Sets bits from to to - 1
+    private static byte[] ones(byte[] bits, int from, int to) {
+        for (int i = from; i < to; i++) bits[i >>> 3] |= (byte) (0x80 >>> (i & 7));
+        return bits;
+    }
+
+    private static byte[] fixed(byte[] bits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOut binaryOut = new BinaryOut(out);
+        BitmapCompressor.compress(in(bits), binaryOut, 8);
+        binaryOut.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] huffman(byte[] bits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOut binaryOut = new BinaryOut(out);
+        BitmapCompressor.compressHuffman(in(bits), binaryOut);
+        binaryOut.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] expand(byte[] compressed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOut binaryOut = new BinaryOut(out);
+        BitmapCompressor.expand(in(compressed), binaryOut);
+        binaryOut.close();
+        return out.toByteArray();
+    }
+
+    private static BinaryIn in(byte[] bytes) {
+        return new BinaryIn(new ByteArrayInputStream(bytes));
+    }
+}